@@ -1,467 +1,1880 @@
 package org.os;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Scanner;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 import java.io.File;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 
 public class CLI {
 
+    // Output buffer for batch mode; flushed when full rather than on every line
+    static final int BATCH_BUFFER_SIZE = 1024 * 1024;
+
     public static void main(String[] args) {
+        if (args.length == 2 && "-f".equals(args[0])) {
+            System.exit(runScript(args[1]));
+        } else if (args.length >= 1 && args.length <= 2
+                && ("--server".equals(args[0]) || "--connect".equals(args[0]))) {
+            try {
+                InterpreterServer.main(args[0], args.length == 2 ? args[1] : null);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(args[0].substring(2) + ": " + e.getMessage());
+                System.exit(1);
+            }
+            System.exit(0);
+        } else if (args.length > 0) {
+            System.err.println("Usage: CLI [-f script|-] [--server|--connect [unix:path|port]]"
+                    + " (a port needs " + InterpreterServer.TOKEN_VARIABLE + ")");
+            System.exit(2);
+        }
+
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         String command;
 
+        // Give the terminal a channel so byte-level commands can bypass the PrintStream
+        System.setOut(new ChannelPrintStream(new FileOutputStream(FileDescriptor.out).getChannel(),
+                8192, false, true));
+        ExternalCommand.useTerminal(System.out, System.err);
+
         System.out.println("CLI - Type 'help' for available commands.");
 
         while (true) {
             System.out.print("CLI> ");
+            System.out.flush();
             try {
                 command = reader.readLine();
+                if (command == null) {
+                    // End of input (Ctrl+D or a closed pipe)
+                    System.out.println();
+                    break;
+                }
                 executeCommand(command);
+                Session.console().jobs().reportFinished(System.out);
+                if (Session.console().exitRequested()) {
+                    break;
+                }
             } catch (IOException e) {
                 System.out.println("Error reading input: " + e.getMessage());
             }
         }
+        Session.console().jobs().killAll();
+        System.out.flush();
+        System.exit(0);
+    }
+
+    /**
+     * Runs every line of {@code script} ("-" for standard input) without prompts, with output
+     * buffered in large blocks, then reports the elapsed time and rate on stderr.
+     *
+     * @return the process exit status
+     */
+    static int runScript(String script) {
+        boolean fromStdin = "-".equals(script);
+        PrintStream out = new ChannelPrintStream(new FileOutputStream(FileDescriptor.out).getChannel(),
+                BATCH_BUFFER_SIZE, false, false);
+        System.setOut(out);
+        // When the script is standard input, commands must not read the rest of it as their input
+        InputStream in = fromStdin ? InputStream.nullInputStream() : System.in;
+
+        long start = System.nanoTime();
+        long commands;
+        try (BufferedReader reader = new BufferedReader(fromStdin
+                ? new InputStreamReader(System.in)
+                : new FileReader(script), BATCH_BUFFER_SIZE)) {
+            commands = runScript(Session.console(), reader, in, out, System.err);
+        } catch (IOException e) {
+            out.flush();
+            System.err.println("Error reading script: " + e.getMessage());
+            return 1;
+        } finally {
+            Session.console().jobs().killAll();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        System.err.printf("Executed %d commands in %d ms (%.0f commands/s)%n", commands,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), commands / Math.max(elapsed / 1e9, 1e-9));
+        return 0;
+    }
+
+    /** Executes each non-blank, non-comment line until EOF and returns how many were run. */
+    static long runScript(Session session, BufferedReader reader, InputStream in, PrintStream out, PrintStream err)
+            throws IOException {
+        long commands = 0;
+        try {
+            String line;
+            while (!session.exitRequested() && (line = reader.readLine()) != null) {
+                String trimmed = line.strip();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                execute(session, line, in, out, err);
+                commands++;
+            }
+        } finally {
+            out.flush();
+        }
+        return commands;
+    }
+
+    // Builtins and plugin commands by name; every entry runs against the streams it is handed
+    static final CommandRegistry COMMANDS = new CommandRegistry();
+
+    static {
+        COMMANDS.register("exit", CLI::exitCommand);
+        COMMANDS.register("help", CLI::helpCommand);
+        COMMANDS.register("mkdir", CLI::createDirectory);
+        COMMANDS.register("rmdir", CLI::removeDirectory);
+        COMMANDS.register("touch", CLI::touchFile);
+        COMMANDS.register("rm", CLI::removeFile);
+        COMMANDS.register("cat", CLI::displayFile);
+        COMMANDS.register("grep", CLI::grepCommand);
+        COMMANDS.register("head", CLI::headCommand);
+        COMMANDS.register("tail", CLI::tailCommand);
+        COMMANDS.register("sort", CLI::sortCommand);
+        COMMANDS.register("uniq", CLI::uniqCommand);
+        COMMANDS.register("wc", CLI::wordCountCommand);
+        COMMANDS.register("find", CLI::findCommand);
+        COMMANDS.register("du", CLI::diskUsageCommand);
+        COMMANDS.register("mv", CLI::moveFile);
+        COMMANDS.register("cp", CLI::copyCommand);
+        COMMANDS.register("ls", CLI::listDirectory);
+        COMMANDS.register("pwd", CLI::printWorkingDirectory);
+        COMMANDS.register("cd", CLI::changeDirectory);
+        COMMANDS.register("stats", CLI::statsCommand);
+        COMMANDS.register("time", CLI::timeCommand);
+        COMMANDS.register("jobs", CLI::jobsCommand);
+        COMMANDS.register("wait", CLI::waitCommand);
+        COMMANDS.register("fg", CLI::fgCommand);
+        COMMANDS.register("kill", CLI::killCommand);
+        COMMANDS.loadPlugins(CLI.class.getClassLoader());
     }
 
     public static void executeCommand(String command) {
-        if (command.isEmpty()) {
+        execute(Session.console(), command);
+    }
+
+    /** Runs {@code command} against the session's own streams. */
+    public static void execute(Session session, String command) {
+        execute(session, command, session.in(), session.out(), session.err());
+    }
+
+    static void execute(String command, InputStream in, PrintStream out, PrintStream err) {
+        execute(Session.console(), command, in, out, err);
+    }
+
+    static void execute(Session session, String command, InputStream in, PrintStream out, PrintStream err) {
+        Parser.Pipeline pipeline;
+        try {
+            pipeline = Parser.parse(command);
+        } catch (IllegalArgumentException e) {
+            err.println("syntax error: " + e.getMessage());
             return;
         }
-        if (command.contains("|")) {
-            pipeCommand(command,System.err);
-            return;
-        } else if (command.contains(">")) {
-            redirectCommand(command);
+        if (pipeline == null) {
             return;
         }
+        if (pipeline.background()) {
+            startJob(session, command, pipeline, out, err);
+        } else {
+            run(session, pipeline, in, out, err);
+        }
+    }
 
-        String[] parts = command.split(" ");
-        String cmd = parts[0];
+    private static void startJob(Session session, String command, Parser.Pipeline pipeline, PrintStream out,
+                                 PrintStream err) {
+        String display = command.strip();
+        display = display.substring(0, display.length() - 1).strip();
+        try {
+            Jobs.Job job = session.jobs().start(session, display, pipeline);
+            out.println("[" + job.id + "] " + display);
+        } catch (IOException e) {
+            err.println("Error starting job: " + e.getMessage());
+        }
+    }
 
-        switch (cmd) {
-            case "exit":
-                System.out.println("Exiting...");
-                System.exit(0);
-                break;
-            case "help":
-                helpCommand();
-                break;
-            case "mkdir":
-                createDirectory(parts);
-                break;
-            case "rmdir":
-                removeDirectory(parts);
-                break;
-            case "touch":
-                touchFile(parts);
-                break;
-            case "rm":
-                removeFile(parts);
-                break;
-            case "cat":
-                displayFile(parts);
-                break;
-            case "mv":
-                moveFile(parts);
-                break;
-            case "ls":
-                listDirectory(parts);
-                break;
-            case "pwd":
-                printWorkingDirectory();
-                break;
-            case "cd":
-                changeDirectory(parts);
-                break;
-            default:
-                System.err.println("Unknown command: " + cmd);
+    static void run(Session session, Parser.Pipeline pipeline, InputStream in, PrintStream out, PrintStream err) {
+        if (pipeline.stages().size() == 1) {
+            runCommand(session, pipeline.stages().get(0), false, in, out, err);
+        } else {
+            runPipeline(session, pipeline.stages(), in, out, err);
+        }
+    }
+
+    // Applies the command's redirections left to right, runs it and closes whatever the redirections
+    // opened. Redirected streams exist only for this call; nothing global is swapped.
+    private static void runCommand(Session session, Parser.SimpleCommand command, boolean piped, InputStream in,
+                                   PrintStream out, PrintStream err) {
+        long start = System.nanoTime();
+        CliEvents.CommandEvent event = new CliEvents.CommandEvent();
+        event.begin();
+        Command builtin = COMMANDS.lookup(command.name());
+        try {
+            if (builtin == null) {
+                // Not a builtin: a program from PATH, which applies its own redirections
+                ExternalCommand.run(session, List.of(command), piped, in, out, err);
+            } else {
+                runBuiltin(session, builtin, command, in, out, err);
+            }
+        } finally {
+            CommandMetrics.INSTANCE.record(builtin == null ? metricName(command) : command.name(),
+                    System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = command.name();
+                event.arguments = String.join(" ", Arrays.asList(command.argv()).subList(1, command.argv().length));
+                event.builtin = builtin != null;
+                event.commit();
+            }
+        }
+    }
+
+    // "/usr/bin/sort" and "sort" are the same command as far as the metrics are concerned
+    private static String metricName(Parser.SimpleCommand command) {
+        String name = command.name();
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    private static void runBuiltin(Session session, Command builtin, Parser.SimpleCommand command, InputStream in,
+                                   PrintStream out, PrintStream err) {
+        PrintStream callerErr = err;
+        List<Closeable> opened = new ArrayList<>(0);
+        try {
+            for (Parser.Redirect redirect : command.redirects()) {
+                if (redirect.type() == Parser.RedirectType.MERGE_ERRORS) {
+                    // 2>&1 means "where stdout goes now", so "> f 2>&1" and "2>&1 > f" differ as in sh
+                    err = out;
+                    continue;
+                }
+                Path target = session.resolve(redirect.target());
+                if (redirect.fd() == 0) {
+                    InputStream file = Channels.newInputStream(FileChannel.open(target, StandardOpenOption.READ));
+                    opened.add(file);
+                    in = file;
+                } else {
+                    PrintStream file = openOutput(target, redirect.type() == Parser.RedirectType.APPEND);
+                    opened.add(file);
+                    if (redirect.fd() == 1) {
+                        out = file;
+                    } else {
+                        err = file;
+                    }
+                }
+            }
+
+            builtin.execute(session, command.argv(), in, out, err);
+        } catch (IOException e) {
+            callerErr.println("Error with file redirection: " + e.getMessage());
+        } finally {
+            for (Closeable file : opened) {
+                // PrintStream hides write failures such as a full disk; checkError flushes and reports them
+                if (file instanceof PrintStream stream && stream.checkError()) {
+                    callerErr.println(command.name() + ": Error writing redirected output");
+                }
+                closeQuietly(file);
+            }
         }
     }
 
-    private static void helpCommand() {
+    private static PrintStream openOutput(Path target, boolean append) throws IOException {
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        changed(target);
+        return new ChannelPrintStream(channel, PIPE_BUFFER_SIZE, true, false, target.toString());
+    }
+
+    private static void exitCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        out.println("Exiting...");
+        session.requestExit();
+    }
+
+    private static void helpCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
         String helpText = """
                 Available commands:
                 - pwd: Print current working directory
                 - cd [directory]: Change directory
-                - ls: List directory contents
+                - ls [-a] [-r] [-U] [-l] [directory]: List directory contents (-U: unsorted, -l: long format)
                 - mkdir [directory]: Create a new directory
-                - rmdir [directory]: Remove an empty directory
+                - rmdir [-p] [directory...]: Remove empty directories (-p: and then their parents as named)
                 - touch [file]: Create a new file or update timestamp
-                - mv [source] [destination]: Move or rename files
-                - rm [file]: Remove files
+                - mv [-f|-n] [-j N] [source...] [destination]: Move or rename files
+                - cp [-r] [-p] [-j N] [source...] [destination]: Copy files (-r: directories and their contents,
+                  -p: keep timestamps, -j: copy N files at a time, default one per CPU and at least 4)
+                - rm [-r] [-f] [file...]: Remove files (-r: directories and their contents, removed in parallel;
+                  -f: ignore missing files)
                 - cat [file]: Display file contents
+                - head [-n N] [file...]: Print the first N lines (default 10); stops the command feeding it
+                - tail [-n N] [-f] [file...]: Print the last N lines (default 10); -f keeps printing what is
+                  appended to the file (stop it with kill when run with &)
+                - sort [-r] [-n] [-k N[,M]] [-S size] [file...]: Sort lines (-r: reverse, -n: numeric, -k: by fields N
+                  to M); spills to temporary files beyond the memory budget (-S, e.g. 512M)
+                - uniq [-c] [file]: Drop repeated adjacent lines (-c: prefix each line with its count)
+                - wc [-l] [-w] [-c] [file...]: Count lines, words and bytes
+                - find [path...] [-name glob] [-type f|d|l] [-size [+|-]N[c|k|M|G]]: List files below the paths
+                - du [-s] [-h] [path...]: Show the size of each directory (apparent sizes, in KB unless -h)
+                - grep [-r] [-i] [-c] [-n] pattern [file...]: Print lines matching a regex (-r: search directories,
+                  -i: ignore case, -c: count matching lines, -n: number lines); reads input when no file is given
+                - stats [--prometheus file] [--reset]: Show command latencies and ls cache statistics
+                - time [command]: Run a command and report its time, CPU, I/O and allocations
+                - jobs: List background jobs
+                - wait [id...]: Wait for background jobs and print their output
+                - fg [id]: Wait for one job (default: the latest) and print its output
+                - kill [id...]: Stop background jobs
                 - exit: Exit the CLI
                 - help: Show this help message
+                Any other command is looked up in PATH and run as an external program.
+                Run "CLI -f script" (or "CLI -f -" for standard input) to execute a script without prompts.
+                - < [file]: Read input from file
                 - > [file]: Redirect output to file (overwrite)
                 - >> [file]: Redirect output to file (append)
+                - 2> [file] / 2>> [file]: Redirect errors to file (overwrite / append)
+                - 2>&1: Send errors wherever output goes
                 - | [command]: Pipe the output of one command to another
+                - [command] &: Run the command as a background job
+                - "..." / '...': Quote arguments containing spaces or operators
                 """;
-        System.out.println(helpText);
+        out.println(helpText);
     }
 
-    private static void createDirectory(String[] parts) {
+    private static void createDirectory(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
         if (parts.length > 1) {
-            File dir = new File(parts[1]);
+            File dir = session.resolve(parts[1]).toFile();
             if (!dir.exists()) {
                 dir.mkdir();
-                System.out.println("Directory created: " + parts[1]);
+                changed(dir.toPath());
+                out.println("Directory created: " + parts[1]);
             } else {
-                System.err.println("mkdir: directory already exists: " + parts[1]);
+                err.println("mkdir: directory already exists: " + parts[1]);
             }
         } else {
-            System.err.println("mkdir: missing argument");
+            err.println("mkdir: missing argument");
         }
     }
 
     public static void changeDirectory(String[] parts) {
+        changeDirectory(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void changeDirectory(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
         if (parts.length < 2) {
-            System.out.println("No directory specified.");
+            out.println("No directory specified.");
             return;
         }
 
         String targetDir = parts[1];
         try {
-            Path currentPath = Paths.get(System.getProperty("user.dir"));
+            Path currentPath = session.cwd();
             // If the targetDir starts with "..", go to the parent directory
             Path newPath;
             if (targetDir.equals("..")) {
                 newPath = currentPath.getParent();
             } else {
                 // Go the new path based on the current working directory
-                newPath = Paths.get(System.getProperty("user.dir")).resolve(targetDir).normalize();
+                newPath = currentPath.resolve(targetDir).normalize();
             }
 
             File newDirectory = newPath.toFile();
             // Check if the new directory exists and is a directory
             if (!newDirectory.exists() || !newDirectory.isDirectory()) {
-                System.out.println("Directory does not exist or is not a directory: " + newPath);
+                out.println("Directory does not exist or is not a directory: " + newPath);
                 return;
             }
             // Change the current working directory
-            System.setProperty("user.dir", newDirectory.getAbsolutePath());
-            System.out.println("Changed directory to: " + newDirectory.getAbsolutePath());
+            session.setCwd(newDirectory.toPath().toAbsolutePath());
+            out.println("Changed directory to: " + newDirectory.getAbsolutePath());
         } catch (InvalidPathException e) {
-            System.out.println("Invalid path specified: " + targetDir);
+            out.println("Invalid path specified: " + targetDir);
         } catch (SecurityException e) {
-            System.out.println("Permission denied to change directory: " + targetDir);
+            out.println("Permission denied to change directory: " + targetDir);
         }
     }
 
 
-    private static void printWorkingDirectory() {
-        System.out.println(System.getProperty("user.dir"));
+    private static void printWorkingDirectory(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        out.println(session.cwd());
     }
 
     static void removeDirectory(String[] parts) {
-        if (parts.length > 1) {
-            File dir = new File(parts[1]);
-            if (dir.exists() && dir.isDirectory()) {
+        removeDirectory(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void removeDirectory(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean parents = false;
+        List<String> operands = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if ("-p".equals(parts[i])) {
+                parents = true;
+            } else {
+                operands.add(parts[i]);
+            }
+        }
+        if (operands.isEmpty()) {
+            err.println("rmdir: missing argument");
+            return;
+        }
+        for (String operand : operands) {
+            // With -p, "a/b/c" also removes a/b and then a, stopping at the first that is not empty
+            for (Path name = Paths.get(operand); name != null; name = parents ? name.getParent() : null) {
+                File dir = session.resolve(name.toString()).toFile();
+                if (!dir.isDirectory()) {
+                    err.println("rmdir: no such directory: " + name);
+                    break;
+                }
                 // Check if the directory is empty
                 String[] contents = dir.list();
                 if (contents != null && contents.length > 0) {
-                    System.err.println("rmdir: failed to remove '" + parts[1] + "': Directory not empty");
-                } else {
-                    dir.delete();
-                    System.out.println("Directory removed: " + parts[1]);
+                    err.println("rmdir: failed to remove '" + name + "': Directory not empty");
+                    break;
                 }
-            } else {
-                System.err.println("rmdir: no such directory: " + parts[1]);
+                if (!dir.delete()) {
+                    err.println("rmdir: failed to remove '" + name + "'");
+                    break;
+                }
+                changed(dir.toPath());
+                out.println("Directory removed: " + name);
             }
-        } else {
-            System.err.println("rmdir: missing argument");
         }
     }
 
 
     static void touchFile(String[] parts) {
+        touchFile(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void touchFile(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
         if (parts.length > 1) {
             try {
-                new File(parts[1]).createNewFile();
-                System.out.println("File created/updated: " + parts[1]);
+                Path file = session.resolve(parts[1]);
+                if (file.toFile().createNewFile()) {
+                    changed(file);
+                }
+                out.println("File created/updated: " + parts[1]);
             } catch (IOException e) {
-                System.err.println("touch: " + e.getMessage());
+                err.println("touch: " + e.getMessage());
             }
         } else {
-            System.err.println("touch: missing argument");
+            err.println("touch: missing argument");
         }
     }
 
     static void removeFile(String[] parts) {
-        if (parts.length > 1) {
-            File file = new File(parts[1]);
-            if (file.isDirectory()) {
-                System.err.println("rm: cannot remove '" + parts[1] + "': Is a directory");
+        removeFile(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void removeFile(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean recursive = false;
+        boolean force = false;
+        List<String> operands = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if (!parts[i].startsWith("-") || parts[i].length() == 1) {
+                operands.add(parts[i]);
+                continue;
             }
-            if (file.exists()) {
-                file.delete();
-                System.out.println("File removed: " + parts[1]);
-            } else {
-                System.err.println("rm: no such file: " + parts[1]);
+            for (char option : parts[i].substring(1).toCharArray()) {
+                switch (option) {
+                    case 'r', 'R' -> recursive = true;
+                    case 'f' -> force = true;
+                    default -> {
+                        err.println("rm: invalid option -- '" + option + "'");
+                        return;
+                    }
+                }
+            }
+        }
+        if (operands.isEmpty()) {
+            if (!force) {
+                err.println("rm: missing argument");
+            }
+            return;
+        }
+
+        for (String operand : operands) {
+            File file = session.resolve(operand).toFile();
+            if (!file.exists() && !Files.isSymbolicLink(file.toPath())) {
+                if (!force) {
+                    err.println("rm: no such file: " + operand);
+                }
+                continue;
+            }
+            if (!file.isDirectory() || Files.isSymbolicLink(file.toPath())) {
+                try {
+                    Files.delete(file.toPath());
+                    changed(file.toPath());
+                    out.println("File removed: " + operand);
+                } catch (IOException e) {
+                    // The system's reason, e.g. "Read-only file system" or "Device or resource busy"
+                    String reason = e instanceof FileSystemException failure && failure.getReason() != null
+                            ? failure.getReason() : DirectoryWalker.describe(e);
+                    err.println("rm: cannot remove '" + operand + "': " + reason);
+                }
+                continue;
+            }
+            if (!recursive) {
+                err.println("rm: cannot remove '" + operand + "': Is a directory");
+                continue;
+            }
+            try {
+                TreeDeleter.Result removed;
+                try {
+                    removed = TreeDeleter.delete(file.toPath());
+                } finally {
+                    // Part of the tree may be gone even when the removal failed
+                    changed(file.toPath());
+                }
+                out.println("Removed " + operand + ": " + removed.files() + " files, " + removed.directories()
+                        + " directories, " + diskUsage(removed.bytes(), true) + " freed");
+            } catch (FileSystemException e) {
+                // Stop at the first failure rather than carry on around it
+                err.println("rm: cannot remove '" + displayPath(operand, file.toPath(), Paths.get(e.getFile()))
+                        + "': " + e.getReason());
+                return;
+            } catch (IOException e) {
+                if (stopped()) {
+                    return;
+                }
+                err.println("rm: " + operand + ": " + DirectoryWalker.describe(e));
+                return;
             }
-        } else {
-            System.err.println("rm: missing argument");
         }
     }
 
 
     static void displayFile(String[] parts) {
+        displayFile(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void displayFile(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
         if (parts.length > 1) {
             for (int i = 1; i < parts.length; i++) {
                 String fileName = parts[i];
-                try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        System.out.println(line);
-                    }
+                try (FileChannel source = FileChannel.open(session.resolve(fileName), StandardOpenOption.READ)) {
+                    writeFile(source, out);
+                } catch (NoSuchFileException e) {
+                    err.println("cat: No such file or directory (file: " + fileName + ")");
                 } catch (IOException e) {
-                    System.err.println("cat: " + e.getMessage() + " (file: " + fileName + ")");
+                    if (stopped()) {
+                        return;
+                    }
+                    err.println("cat: " + e.getMessage() + " (file: " + fileName + ")");
                 }
             }
         } else {
-            System.out.println("Enter text :");
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    System.out.println(line);
-                }
+            // Only prompt at the terminal, not inside a pipe or redirection
+            if (in == System.in && out == System.out) {
+                out.println("Enter text :");
+            }
+            try {
+                in.transferTo(out);
             } catch (IOException e) {
-                System.err.println("cat: " + e.getMessage());
+                if (!stopped()) {
+                    err.println("cat: " + e.getMessage());
+                }
             }
         }
     }
 
-    static void moveFile(String[] parts) {
-        if (parts.length < 3) {
-            System.err.println("mv: missing arguments");
-            return;
-        }
-
-        File source = new File(parts[1]);
-        File destination = new File(parts[parts.length - 1]);
+    // An interrupted command was killed or wrote into a pipe nobody reads any more; like a shell's
+    // SIGPIPE, neither is worth an error message
+    private static boolean stopped() {
+        return Thread.currentThread().isInterrupted();
+    }
 
-        // Case 1: Renaming or moving a single file to a different location
-        if (parts.length == 3) {
-            if (!source.exists()) {
-                System.err.println("mv: no such file: " + parts[1]);
-                return;
-            }
+    // Direct buffer used by cat when writing to the terminal
+    static final int TERMINAL_BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> TERMINAL_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TERMINAL_BUFFER_SIZE));
 
-            if (destination.isDirectory()) {
-                destination = new File(destination, source.getName());
-            }
+    // Copies the file byte for byte: straight from the page cache into files and pipes,
+    // through a direct buffer to the terminal, and only through the heap for plain streams
+    static void writeFile(FileChannel source, PrintStream out) throws IOException {
+        writeFile(source, 0, Long.MAX_VALUE, out);
+    }
 
-            // If the destination already exists, ask for the user's confirmation
-            if (destination.exists()) {
-                System.out.print("Overwrite " + destination.getName() + "? (y/n): ");
-                Scanner scanner = new Scanner(System.in);
-                String response = scanner.nextLine();
-                if (!response.toLowerCase().startsWith("y")) {
-                    System.out.println("Skipped: " + source.getName());
-                    return;
-                }
+    /**
+     * Writes bytes {@code from} to {@code to} of {@code source}, stopping early at EOF, the same way as
+     * {@link #writeFile(FileChannel, PrintStream)}.
+     *
+     * @return the position after the last byte written
+     */
+    static long writeFile(FileChannel source, long from, long to, PrintStream out) throws IOException {
+        long position = from;
+        if (!(out instanceof ChannelPrintStream channelOut)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            while (position < to && read(source, buffer, position, to) > 0) {
+                out.write(buffer.array(), 0, buffer.limit());
+                position += buffer.limit();
             }
+            return position;
+        }
 
-            if (source.renameTo(destination)) {
-                System.out.println("Moved/Renamed: " + source.getName() + " to " + destination.getAbsolutePath());
-            } else {
-                try {
-                    copyFile(source, destination);
-                    if (source.delete()) {
-                        System.out.println("Moved: " + source.getName() + " to " + destination.getAbsolutePath());
-                    } else {
-                        System.err.println("mv: failed to delete source file after copying.");
-                    }
-                } catch (IOException e) {
-                    System.err.println("mv: failed to move " + source.getName() + ": " + e.getMessage());
+        WritableByteChannel target = channelOut.channel();
+        if (channelOut.acceptsTransfers()) {
+            long end = Math.min(to, source.size());
+            while (position < end) {
+                long start = position;
+                long transferred = channelOut.timedWrite(() -> source.transferTo(start, end - start, target));
+                if (transferred <= 0) {
+                    break;
                 }
+                position += transferred;
             }
         } else {
-            // Case 2: Moving multiple files into a directory
-            if (destination.exists() && destination.isDirectory()) {
-                for (int i = 1; i < parts.length - 1; i++) {
-                    File fileToMove = new File(parts[i]);
-                    if (fileToMove.exists()) {
-                        File newLocation = new File(destination, fileToMove.getName());
-
-                        if (newLocation.exists()) {
-                            System.out.print("Overwrite " + newLocation.getName() + "? (y/n): ");
-                            Scanner scanner = new Scanner(System.in);
-                            String response = scanner.nextLine();
-                            if (!response.toLowerCase().startsWith("y")) {
-                                System.out.println("Skipped: " + fileToMove.getName());
-                                continue;
-                            }
-                        }
-
-                        if (!fileToMove.renameTo(newLocation)) {
-                            try {
-                                copyFile(fileToMove, newLocation);
-                                if (fileToMove.delete()) {
-                                    System.out.println("Moved: " + fileToMove.getName() + " to " + destination.getAbsolutePath());
-                                } else {
-                                    System.err.println("mv: failed to delete " + fileToMove.getName() + " after copying.");
-                                }
-                            } catch (IOException e) {
-                                System.err.println("mv: failed to move " + fileToMove.getName() + ": " + e.getMessage());
-                            }
-                        }
-                    } else {
-                        System.err.println("mv: no such file: " + parts[i]);
-                    }
+            ByteBuffer buffer = TERMINAL_BUFFER.get();
+            while (position < to && read(source, buffer, position, to) > 0) {
+                position += buffer.limit();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
                 }
-            } else {
-                System.err.println("mv: target is not a directory: " + parts[parts.length - 1]);
             }
         }
+        return position;
     }
 
-    static void copyFile(File source, File destination) throws IOException {
-        try (InputStream in = new FileInputStream(source);
-             OutputStream out = new FileOutputStream(destination)) {
-
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = in.read(buffer)) > 0) {
-                out.write(buffer, 0, length);
-            }
+    // Reads at most up to position to into the flipped buffer
+    private static int read(FileChannel source, ByteBuffer buffer, long position, long to) throws IOException {
+        buffer.clear();
+        if (to - position < buffer.capacity()) {
+            buffer.limit((int) (to - position));
         }
+        int read = source.read(buffer, position);
+        buffer.flip();
+        return read;
     }
 
-    static void listDirectory(String[] parts) {
-        File dir = new File("."); // Default to the current directory
-        boolean showAll = false; // Option to show hidden files
-        boolean reverseOrder = false; // Option to reverse order
+    static void headCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        printLines(session, parts, false, in, out, err);
+    }
+
+    static void tailCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        printLines(session, parts, true, in, out, err);
+    }
 
+    // Shared by head and tail: -n N, -nN and -N give the line count; -f only applies to tail
+    private static void printLines(Session session, String[] parts, boolean tail, InputStream in, PrintStream out,
+                                   PrintStream err) {
+        String name = parts[0];
+        long lines = 10;
+        boolean follow = false;
+        List<String> files = new ArrayList<>();
         for (int i = 1; i < parts.length; i++) {
-            if ("-a".equals(parts[i])) {
-                showAll = true; // Show hidden files
-            } else if ("-r".equals(parts[i])) {
-                reverseOrder = true; // Reverse the listing order
+            String count = null;
+            if (tail && "-f".equals(parts[i])) {
+                follow = true;
+            } else if (parts[i].startsWith("-n")) {
+                count = parts[i].length() > 2 ? parts[i].substring(2) : (++i < parts.length ? parts[i] : "");
+            } else if (parts[i].matches("-\\d+")) {
+                count = parts[i].substring(1);
+            } else if (parts[i].startsWith("-") && parts[i].length() > 1) {
+                err.println(name + ": invalid option: " + parts[i]);
+                return;
             } else {
-                dir = new File(parts[i]); // Use the specified directory
+                files.add(parts[i]);
+            }
+            if (count != null) {
+                try {
+                    lines = Long.parseLong(count);
+                } catch (NumberFormatException e) {
+                    lines = -1;
+                }
+                if (lines < 0) {
+                    err.println(name + ": invalid number of lines: " + count);
+                    return;
+                }
             }
         }
-
-        if (!dir.exists() || !dir.isDirectory()) {
-            System.out.println("No files found or directory cannot be read.");
+        if (follow && files.size() != 1) {
+            err.println("tail: -f needs exactly one file");
             return;
         }
 
-        String[] files = dir.list();
-        if (files != null) {
-            if (!showAll) {
-                files = Arrays.stream(files).filter(file -> !file.startsWith(".")).toArray(String[]::new);
+        try {
+            if (files.isEmpty()) {
+                if (tail) {
+                    Lines.tail(in, lines, out);
+                } else {
+                    Lines.head(in, lines, out);
+                }
+                return;
             }
-
-            Arrays.sort(files);
-
-            if (reverseOrder) {
-                Collections.reverse(Arrays.asList(files));
+            for (int i = 0; i < files.size(); i++) {
+                String fileName = files.get(i);
+                Path path = session.resolve(fileName);
+                try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+                    if (files.size() > 1) {
+                        out.println((i > 0 ? System.lineSeparator() : "") + "==> " + fileName + " <==");
+                    }
+                    if (!tail) {
+                        Lines.head(Channels.newInputStream(source), lines, out);
+                    } else if (source.size() == 0 && !follow) {
+                        // Pseudo-files such as those in /proc report no size, so they are read through
+                        Lines.tail(Channels.newInputStream(source), lines, out);
+                    } else {
+                        long end = writeFile(source, Lines.tailStart(source, lines), Long.MAX_VALUE, out);
+                        if (follow) {
+                            Lines.follow(path, fileName, source, end, out, err);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    err.println(name + ": " + fileName + ": No such file or directory");
+                }
             }
-
-            System.out.println("Listing directory: ");
-            for (String file : files) {
-                System.out.println(file);
+        } catch (IOException e) {
+            if (!stopped()) {
+                err.println(name + ": " + e.getMessage());
             }
-        } else {
-            System.out.println("Directory is empty or cannot be read.");
         }
     }
 
-    static void redirectCommand(String command) {
-        // Split command around '>' and trim the parts
-        String[] parts = command.contains(">>") ? command.split(">>") : command.split(">");
-        String leftCommand = parts[0].trim(); // The command to execute (e.g., "ls")
-        String rightCommand = parts[1].trim(); // The file to write to (e.g., "menna.txt")
-
-        boolean append = command.contains(">>"); // Append mode if ">>" is used
-
-        // Create a new File object for the target file
-        File outputFile = new File(rightCommand);
-
-        System.out.println("Redirecting output to: " + outputFile.getAbsolutePath());
-
-        try (PrintStream ps = new PrintStream(new FileOutputStream(outputFile, append))) {
-            PrintStream originalOut = System.out;
-            System.setOut(ps);
-
-            // Execute the command (left part)
-            executeCommand(leftCommand); // This will output to the file
+    static void sortCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean reverse = false;
+        boolean numeric = false;
+        int first = 1;
+        int last = 0;
+        long memory = ExternalSort.DEFAULT_MEMORY;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith("-k") || parts[i].startsWith("-S")) {
+                boolean size = parts[i].startsWith("-S");
+                String value = parts[i].length() > 2 ? parts[i].substring(2) : (++i < parts.length ? parts[i] : "");
+                try {
+                    if (size) {
+                        memory = parseSize(value);
+                    } else {
+                        String[] fields = value.split(",", 2);
+                        first = Integer.parseInt(fields[0]);
+                        last = fields.length > 1 ? Integer.parseInt(fields[1]) : 0;
+                        if (first < 1 || last < 0 || (last > 0 && last < first)) {
+                            throw new NumberFormatException();
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    err.println("sort: invalid argument: " + value);
+                    return;
+                }
+            } else if (parts[i].startsWith("-") && parts[i].length() > 1) {
+                for (char option : parts[i].substring(1).toCharArray()) {
+                    switch (option) {
+                        case 'r' -> reverse = true;
+                        case 'n' -> numeric = true;
+                        default -> {
+                            err.println("sort: invalid option -- '" + option + "'");
+                            return;
+                        }
+                    }
+                }
+            } else {
+                files.add(parts[i]);
+            }
+        }
 
-            // Restore the original System.out
-            System.setOut(originalOut);
-            System.out.println("Redirection completed successfully.");
-        } catch (FileNotFoundException e) {
-            System.err.println("Error with file redirection: Unable to write to " + rightCommand + ". File not found or access denied.");
-            e.printStackTrace();
+        try (ExternalSort sorted = new ExternalSort(LineOrder.of(numeric, reverse, first, last), memory)) {
+            if (files.isEmpty()) {
+                addLines(in, sorted);
+            }
+            // As GNU sort does, a file that cannot be opened is reported and the others are still sorted
+            for (String fileName : files) {
+                InputStream file;
+                try {
+                    file = Files.newInputStream(session.resolve(fileName));
+                } catch (IOException e) {
+                    err.println("sort: " + fileName + ": " + DirectoryWalker.describe(e));
+                    continue;
+                }
+                try (file) {
+                    addLines(file, sorted);
+                }
+            }
+            sorted.forEachSorted(out::println);
         } catch (IOException e) {
+            if (!stopped()) {
+                err.println("sort: " + e.getMessage());
+            }
         }
     }
 
-    static void executeCommand2(String command) {
-        if (command.startsWith("cat")) {
-            System.out.println("Executing command: " + command);
-        } else {
-            System.out.println("Executing command: " + command);
+    private static void addLines(InputStream in, ExternalSort sorted) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                PIPE_BUFFER_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sorted.add(line);
         }
     }
 
-    static void pipeCommand(String command, PrintStream output) {
-        String[] commands = command.split("\\|");
-        if (commands.length != 2) {
-            output.println("Invalid pipe command. Use format: command1 | command2");
-            return;
+    // Bytes, or a number with a K, M or G suffix
+    private static long parseSize(String value) {
+        long unit = switch (value.isEmpty() ? ' ' : Character.toUpperCase(value.charAt(value.length() - 1))) {
+            case 'K' -> 1024L;
+            case 'M' -> 1024L * 1024;
+            case 'G' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        long size = Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+        if (size <= 0) {
+            throw new NumberFormatException();
         }
-        // Capture output of the first command
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PrintStream ps = new PrintStream(baos);
-        PrintStream originalOut = System.out;
-
-        // Redirect output to the ByteArrayOutputStream
-        System.setOut(ps);
-        executeSingleCommand(commands[0].trim()); // Execute first command
-        System.setOut(originalOut); // Restore original output
-
-        // Pass the output to the second command
-        InputStream inputStream = new ByteArrayInputStream(baos.toByteArray());
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-
-        // Execute the second command with the output from the first command
-        executeWithInput(commands[1].trim(), reader, output);
+        return size;
     }
 
-    static void executeSingleCommand(String command) {
-        if (command.equals("ls")) {
-            listDirectory(new String[]{"."});
-        } else if (command.startsWith("cat")) {
-            String[] parts = command.split(" ");
-            if (parts.length > 1) {
-                String fileName = parts[1];
-                System.out.println("Contents of " + fileName + ":");
-                System.out.println("This is a sample content of " + fileName);
+    static void uniqCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean count = false;
+        String fileName = null;
+        for (int i = 1; i < parts.length; i++) {
+            if ("-c".equals(parts[i])) {
+                count = true;
+            } else if (parts[i].startsWith("-") && parts[i].length() > 1) {
+                err.println("uniq: invalid option: " + parts[i]);
+                return;
+            } else if (fileName == null) {
+                fileName = parts[i];
+            } else {
+                err.println("uniq: extra operand: " + parts[i]);
+                return;
             }
-        } else {
-            System.out.println("Unknown command: " + command);
         }
-    }
 
-    static void executeWithInput(String command, BufferedReader inputReader, PrintStream output) {
         try {
-            if (command.equals("cat")) {
-                String line;
-                while ((line = inputReader.readLine()) != null) {
-                    System.out.println(line); // Output the content passed from the first command
-                }
+            if (fileName == null) {
+                uniq(in, count, out);
             } else {
-                output.println("Unknown command for piped input: " + command);
+                try (InputStream file = Files.newInputStream(session.resolve(fileName))) {
+                    uniq(file, count, out);
+                }
             }
+        } catch (NoSuchFileException e) {
+            err.println("uniq: " + fileName + ": No such file or directory");
         } catch (IOException e) {
-            output.println("Error reading input: " + e.getMessage());        }
+            if (!stopped()) {
+                err.println("uniq: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void uniq(InputStream in, boolean count, PrintStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8),
+                PIPE_BUFFER_SIZE);
+        String previous = reader.readLine();
+        long repeats = 1;
+        while (previous != null) {
+            String line = reader.readLine();
+            if (previous.equals(line)) {
+                repeats++;
+                continue;
+            }
+            out.println(count ? String.format("%7d %s", repeats, previous) : previous);
+            previous = line;
+            repeats = 1;
+        }
     }
-}
 
+    static void wordCountCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean lines = false;
+        boolean words = false;
+        boolean bytes = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if (!parts[i].startsWith("-") || parts[i].length() == 1) {
+                files.add(parts[i]);
+                continue;
+            }
+            for (char option : parts[i].substring(1).toCharArray()) {
+                switch (option) {
+                    case 'l' -> lines = true;
+                    case 'w' -> words = true;
+                    case 'c' -> bytes = true;
+                    default -> {
+                        err.println("wc: invalid option -- '" + option + "'");
+                        return;
+                    }
+                }
+            }
+        }
+        if (!lines && !words && !bytes) {
+            lines = words = bytes = true;
+        }
+
+        if (files.isEmpty()) {
+            try {
+                printCounts(WordCount.count(in, words), null, 7, lines, words, bytes, out);
+            } catch (IOException e) {
+                if (!stopped()) {
+                    err.println("wc: " + e.getMessage());
+                }
+            }
+            return;
+        }
+
+        // Every file is counted at once on the fork-join pool; the results are printed in order
+        List<ForkJoinTask<WordCount.Counts>> tasks = new ArrayList<>();
+        for (String fileName : files) {
+            Path path = session.resolve(fileName);
+            tasks.add(Files.isDirectory(path) ? null : WordCount.task(path, lines || words, words).fork());
+        }
+        List<WordCount.Counts> counts = new ArrayList<>();
+        WordCount.Counts total = new WordCount.Counts(0, words ? 0 : -1, 0);
+        for (int i = 0; i < files.size(); i++) {
+            WordCount.Counts count = null;
+            if (tasks.get(i) == null) {
+                err.println("wc: " + files.get(i) + ": Is a directory");
+            } else {
+                try {
+                    count = tasks.get(i).join();
+                    total = total.plus(count);
+                } catch (UncheckedIOException e) {
+                    err.println("wc: " + files.get(i) + ": " + DirectoryWalker.describe(e.getCause()));
+                }
+            }
+            counts.add(count);
+        }
+        long widest = Math.max(lines ? total.lines() : 0, Math.max(words ? total.words() : 0, bytes ? total.bytes() : 0));
+        int width = Long.toString(widest).length();
+        for (int i = 0; i < files.size(); i++) {
+            if (counts.get(i) != null) {
+                printCounts(counts.get(i), files.get(i), width, lines, words, bytes, out);
+            }
+        }
+        if (files.size() > 1) {
+            printCounts(total, "total", width, lines, words, bytes, out);
+        }
+    }
+
+    private static void printCounts(WordCount.Counts counts, String name, int width, boolean lines, boolean words,
+                                    boolean bytes, PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        String column = "%" + width + "d";
+        if (lines) {
+            line.append(String.format(column, counts.lines()));
+        }
+        if (words) {
+            line.append(line.length() > 0 ? " " : "").append(String.format(column, counts.words()));
+        }
+        if (bytes) {
+            line.append(line.length() > 0 ? " " : "").append(String.format(column, counts.bytes()));
+        }
+        if (name != null) {
+            line.append(' ').append(name);
+        }
+        out.println(line);
+    }
+
+    static void findCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        List<String> roots = new ArrayList<>();
+        int i = 1;
+        for (; i < parts.length && !parts[i].startsWith("-"); i++) {
+            roots.add(parts[i]);
+        }
+        PathMatcher name = null;
+        String type = null;
+        LongPredicate size = null;
+        for (; i < parts.length; i++) {
+            String predicate = parts[i];
+            if (i + 1 == parts.length) {
+                err.println("find: missing argument to " + predicate);
+                return;
+            }
+            String value = parts[++i];
+            try {
+                switch (predicate) {
+                    case "-name" -> name = FileSystems.getDefault().getPathMatcher("glob:" + value);
+                    case "-type" -> {
+                        if (!value.equals("f") && !value.equals("d") && !value.equals("l")) {
+                            throw new IllegalArgumentException("Unknown argument to -type: " + value);
+                        }
+                        type = value;
+                    }
+                    case "-size" -> size = sizePredicate(value);
+                    default -> throw new IllegalArgumentException("unknown predicate " + predicate);
+                }
+            } catch (IllegalArgumentException e) {
+                err.println("find: " + e.getMessage());
+                return;
+            }
+        }
+        if (roots.isEmpty()) {
+            roots.add(".");
+        }
+
+        for (String root : roots) {
+            Path top = session.resolve(root);
+            PathMatcher nameMatcher = name;
+            String typeFilter = type;
+            LongPredicate sizeFilter = size;
+            try {
+                DirectoryWalker.walk(top, "find", err, entry -> {
+                    BasicFileAttributes attributes = entry.attributes();
+                    Path fileName = entry.path().getFileName();
+                    if ((nameMatcher == null || (fileName != null && nameMatcher.matches(fileName)))
+                            && (typeFilter == null || switch (typeFilter) {
+                                case "f" -> attributes.isRegularFile();
+                                case "d" -> attributes.isDirectory();
+                                default -> attributes.isSymbolicLink();
+                            })
+                            && (sizeFilter == null || sizeFilter.test(attributes.size()))) {
+                        out.println(displayPath(root, top, entry.path()));
+                    }
+                });
+            } catch (IOException e) {
+                if (stopped()) {
+                    return;
+                }
+                err.println("find: " + root + ": " + DirectoryWalker.describe(e));
+            }
+        }
+    }
+
+    // find's -size: N units rounded up, +N more than N, -N fewer; 512-byte blocks unless c, k, M or G is given
+    private static LongPredicate sizePredicate(String value) {
+        String number = value.startsWith("+") || value.startsWith("-") ? value.substring(1) : value;
+        long unit = 512;
+        if (!number.isEmpty() && !Character.isDigit(number.charAt(number.length() - 1))) {
+            unit = switch (number.charAt(number.length() - 1)) {
+                case 'c' -> 1;
+                case 'k' -> 1024;
+                case 'M' -> 1024 * 1024;
+                case 'G' -> 1024 * 1024 * 1024;
+                default -> throw new IllegalArgumentException("invalid -size argument: " + value);
+            };
+            number = number.substring(0, number.length() - 1);
+        }
+        long count;
+        try {
+            count = Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid -size argument: " + value);
+        }
+        long bytesPerUnit = unit;
+        return switch (value.charAt(0)) {
+            case '+' -> bytes -> (bytes + bytesPerUnit - 1) / bytesPerUnit > count;
+            case '-' -> bytes -> (bytes + bytesPerUnit - 1) / bytesPerUnit < count;
+            default -> bytes -> (bytes + bytesPerUnit - 1) / bytesPerUnit == count;
+        };
+    }
+
+    static void diskUsageCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean summarize = false;
+        boolean human = false;
+        List<String> roots = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if (!parts[i].startsWith("-") || parts[i].length() == 1) {
+                roots.add(parts[i]);
+                continue;
+            }
+            for (char option : parts[i].substring(1).toCharArray()) {
+                switch (option) {
+                    case 's' -> summarize = true;
+                    case 'h' -> human = true;
+                    default -> {
+                        err.println("du: invalid option -- '" + option + "'");
+                        return;
+                    }
+                }
+            }
+        }
+        if (roots.isEmpty()) {
+            roots.add(".");
+        }
+
+        boolean summaryOnly = summarize;
+        boolean humanReadable = human;
+        for (String root : roots) {
+            Path top = session.resolve(root);
+            // Bytes so far in each directory still being walked, innermost on top
+            ArrayDeque<long[]> totals = new ArrayDeque<>();
+            try {
+                DirectoryWalker.walk(top, "du", err, new DirectoryWalker.Visitor() {
+                    @Override
+                    public void visit(DirectoryWalker.Entry entry) {
+                        long bytes = entry.attributes().size();
+                        if (entry.isDirectory()) {
+                            totals.push(new long[]{bytes});
+                        } else if (totals.isEmpty()) {
+                            out.println(diskUsage(bytes, humanReadable) + "\t" + root);
+                        } else {
+                            totals.peek()[0] += bytes;
+                        }
+                    }
+
+                    @Override
+                    public void leave(DirectoryWalker.Entry directory) {
+                        long bytes = totals.pop()[0];
+                        if (!totals.isEmpty()) {
+                            totals.peek()[0] += bytes;
+                        }
+                        if (!summaryOnly || totals.isEmpty()) {
+                            out.println(diskUsage(bytes, humanReadable) + "\t" + displayPath(root, top, directory.path()));
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (stopped()) {
+                    return;
+                }
+                err.println("du: " + root + ": " + DirectoryWalker.describe(e));
+            }
+        }
+    }
+
+    // KB rounded up, or with -h one decimal below 10 and a K, M, G... suffix, rounded up as du does
+    private static String diskUsage(long bytes, boolean human) {
+        if (!human) {
+            return Long.toString((bytes + 1023) / 1024);
+        }
+        if (bytes < 1024) {
+            return Long.toString(bytes);
+        }
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < 5) {
+            value /= 1024;
+            unit++;
+        }
+        char suffix = "KMGTPE".charAt(unit);
+        return value < 10 ? String.format(Locale.ROOT, "%.1f%c", Math.ceil(value * 10) / 10, suffix)
+                : String.format(Locale.ROOT, "%d%c", (long) Math.ceil(value), suffix);
+    }
+
+    // The path as the user wrote it followed by the part below it: "." gives "./a/b", like find
+    private static String displayPath(String operand, Path top, Path path) {
+        if (path.equals(top)) {
+            return operand;
+        }
+        return operand + (operand.endsWith("/") ? "" : "/") + top.relativize(path);
+    }
+
+    static void grepCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        boolean recursive = false;
+        boolean ignoreCase = false;
+        boolean countOnly = false;
+        boolean lineNumbers = false;
+        int i = 1;
+        for (; i < parts.length && parts[i].startsWith("-") && parts[i].length() > 1; i++) {
+            if ("--".equals(parts[i])) {
+                i++;
+                break;
+            }
+            for (char option : parts[i].substring(1).toCharArray()) {
+                switch (option) {
+                    case 'r' -> recursive = true;
+                    case 'i' -> ignoreCase = true;
+                    case 'c' -> countOnly = true;
+                    case 'n' -> lineNumbers = true;
+                    default -> {
+                        err.println("grep: invalid option -- '" + option + "'");
+                        return;
+                    }
+                }
+            }
+        }
+        if (i == parts.length) {
+            err.println("grep: Missing pattern");
+            return;
+        }
+
+        Grep grep;
+        try {
+            grep = new Grep(parts[i++], ignoreCase, countOnly, lineNumbers);
+        } catch (java.util.regex.PatternSyntaxException e) {
+            err.println("grep: Invalid pattern: " + e.getDescription());
+            return;
+        }
+        List<String> operands = new ArrayList<>(Arrays.asList(parts).subList(i, parts.length));
+        try {
+            if (operands.isEmpty() && !recursive) {
+                grep.search(in, out);
+                return;
+            }
+            // "grep -r pattern" searches the working directory and names files relative to it
+            boolean relative = operands.isEmpty();
+            if (relative) {
+                operands.add(".");
+            }
+            boolean withNames = operands.size() > 1
+                    || recursive && Files.isDirectory(session.resolve(operands.get(0)));
+            // Files are searched as the walk reaches them, so matches print while the tree is still read
+            try (Grep.Search search = grep.new Search(withNames, out, err)) {
+                for (String operand : operands) {
+                    Path path = session.resolve(operand);
+                    if (!Files.isDirectory(path)) {
+                        search.add(new Grep.Target(path, operand));
+                    } else if (!recursive) {
+                        err.println("grep: " + operand + ": Is a directory");
+                    } else {
+                        DirectoryWalker.walk(path, "grep", err, entry -> {
+                            if (entry.attributes().isRegularFile()) {
+                                Path name = path.relativize(entry.path());
+                                try {
+                                    search.add(new Grep.Target(entry.path(),
+                                            relative ? name.toString() : Paths.get(operand).resolve(name).toString()));
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    throw new InterruptedIOException("grep interrupted");
+                                }
+                            }
+                        });
+                    }
+                }
+                search.finish();
+            }
+        } catch (IOException e) {
+            if (!stopped()) {
+                err.println("grep: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void moveFile(String[] parts) {
+        moveFile(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void moveFile(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        // Options: -f overwrite without asking, -n never overwrite, -j N move on N worker threads
+        boolean force = false;
+        boolean noClobber = false;
+        int jobs = 0;
+        List<String> operands = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if ("-f".equals(parts[i])) {
+                force = true;
+                noClobber = false;
+            } else if ("-n".equals(parts[i])) {
+                noClobber = true;
+                force = false;
+            } else if (parts[i].startsWith("-j")) {
+                String count = parts[i].length() > 2 ? parts[i].substring(2) : (++i < parts.length ? parts[i] : "");
+                try {
+                    jobs = Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs < 1) {
+                    err.println("mv: invalid job count: " + count);
+                    return;
+                }
+            } else {
+                operands.add(parts[i]);
+            }
+        }
+
+        if (operands.size() < 2) {
+            err.println("mv: missing arguments");
+            return;
+        }
+
+        File source = session.resolve(operands.get(0)).toFile();
+        File destination = session.resolve(operands.get(operands.size() - 1)).toFile();
+
+        // Case 1: Renaming or moving a single file to a different location
+        if (operands.size() == 2) {
+            if (!source.exists()) {
+                err.println("mv: no such file: " + operands.get(0));
+                return;
+            }
+
+            if (destination.isDirectory()) {
+                destination = new File(destination, source.getName());
+            }
+
+            // If the destination already exists, ask for the user's confirmation
+            if (destination.exists() && !confirmOverwrite(destination, force, noClobber, in, out)) {
+                out.println("Skipped: " + source.getName());
+                return;
+            }
+
+            try {
+                if (FileTransfer.move(source.toPath(), destination.toPath()) == FileTransfer.Strategy.RENAME) {
+                    out.println("Moved/Renamed: " + source.getName() + " to " + destination.getAbsolutePath());
+                } else {
+                    out.println("Moved: " + source.getName() + " to " + destination.getAbsolutePath());
+                }
+            } catch (IOException e) {
+                err.println("mv: failed to move " + source.getName() + ": " + e.getMessage());
+            } finally {
+                changed(source.toPath());
+                changed(destination.toPath());
+            }
+            return;
+        }
+
+        // Case 2: Moving multiple files into a directory
+        if (!destination.exists() || !destination.isDirectory()) {
+            err.println("mv: target is not a directory: " + operands.get(operands.size() - 1));
+            return;
+        }
+
+        // Settle every overwrite question before the first move, so the workers never wait on the user
+        long start = System.nanoTime();
+        int skipped = 0;
+        List<File> toMove = new ArrayList<>();
+        for (int i = 0; i < operands.size() - 1; i++) {
+            File fileToMove = session.resolve(operands.get(i)).toFile();
+            if (!fileToMove.exists()) {
+                err.println("mv: no such file: " + operands.get(i));
+                skipped++;
+                continue;
+            }
+            File newLocation = new File(destination, fileToMove.getName());
+            if (newLocation.exists() && !confirmOverwrite(newLocation, force, noClobber, in, out)) {
+                out.println("Skipped: " + fileToMove.getName());
+                skipped++;
+                continue;
+            }
+            toMove.add(fileToMove);
+        }
+
+        File targetDir = destination;
+        AtomicInteger moved = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Runnable[] tasks = toMove.stream().<Runnable>map(fileToMove -> () -> {
+            File newLocation = new File(targetDir, fileToMove.getName());
+            try {
+                if (FileTransfer.move(fileToMove.toPath(), newLocation.toPath()) != FileTransfer.Strategy.RENAME) {
+                    out.println("Moved: " + fileToMove.getName() + " to " + targetDir.getAbsolutePath());
+                }
+                moved.incrementAndGet();
+            } catch (IOException e) {
+                err.println("mv: failed to move " + fileToMove.getName() + ": " + e.getMessage());
+                failed.incrementAndGet();
+            } finally {
+                changed(fileToMove.toPath());
+                changed(newLocation.toPath());
+            }
+        }).toArray(Runnable[]::new);
+
+        if (jobs <= 1) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, Math.max(tasks.length, 1)));
+            try {
+                for (Runnable task : tasks) {
+                    pool.execute(task);
+                }
+            } finally {
+                pool.shutdown();
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    pool.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (jobs > 0) {
+            out.printf("mv: %d moved, %d skipped, %d failed in %d ms%n", moved.get(), skipped, failed.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    // Reads the answer a byte at a time, so the commands after it on the same input are left unread
+    private static boolean confirmOverwrite(File target, boolean force, boolean noClobber, InputStream in,
+                                            PrintStream out) {
+        if (force || noClobber) {
+            return force;
+        }
+        out.print("Overwrite " + target.getName() + "? (y/n): ");
+        out.flush();
+        String response;
+        try {
+            response = InterpreterServer.readLine(in);
+        } catch (IOException e) {
+            response = null;
+        }
+        return response != null && response.toLowerCase().startsWith("y");
+    }
+
+    static void copyCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        // Options: -r copy directories, -p keep timestamps, -j N copy on N worker threads; small files
+        // spend their time waiting on the file system, so even one CPU keeps several workers busy
+        boolean recursive = false;
+        boolean preserve = false;
+        int jobs = Math.max(4, Runtime.getRuntime().availableProcessors());
+        List<String> operands = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith("-j")) {
+                String count = parts[i].length() > 2 ? parts[i].substring(2) : (++i < parts.length ? parts[i] : "");
+                try {
+                    jobs = Integer.parseInt(count);
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs < 1) {
+                    err.println("cp: invalid job count: " + count);
+                    return;
+                }
+            } else if (parts[i].startsWith("-") && parts[i].length() > 1) {
+                for (char option : parts[i].substring(1).toCharArray()) {
+                    switch (option) {
+                        case 'r', 'R' -> recursive = true;
+                        case 'p' -> preserve = true;
+                        default -> {
+                            err.println("cp: invalid option -- '" + option + "'");
+                            return;
+                        }
+                    }
+                }
+            } else {
+                operands.add(parts[i]);
+            }
+        }
+        if (operands.size() < 2) {
+            err.println("cp: missing arguments");
+            return;
+        }
+
+        Path destination = session.resolve(operands.get(operands.size() - 1));
+        boolean intoDirectory = Files.isDirectory(destination);
+        if (operands.size() > 2 && !intoDirectory) {
+            err.println("cp: target is not a directory: " + operands.get(operands.size() - 1));
+            return;
+        }
+        try (TreeCopier copier = new TreeCopier(jobs, preserve, err)) {
+            for (String operand : operands.subList(0, operands.size() - 1)) {
+                Path source = session.resolve(operand);
+                if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+                    err.println("cp: no such file: " + operand);
+                    continue;
+                }
+                Path target = intoDirectory ? destination.resolve(source.getFileName().toString()) : destination;
+                if (!recursive && Files.isSymbolicLink(source)) {
+                    // Without -r a link operand stands for what it points to; only links inside a tree are kept
+                    try {
+                        source = source.toRealPath();
+                    } catch (IOException e) {
+                        err.println("cp: cannot stat '" + operand + "': " + DirectoryWalker.describe(e));
+                        continue;
+                    }
+                }
+                // A file copied onto itself would be truncated before it is read
+                if (Files.exists(target) && Files.isSameFile(source, target)) {
+                    err.println("cp: '" + operand + "' and '" + target + "' are the same file");
+                    continue;
+                }
+                if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!recursive) {
+                        err.println("cp: -r not specified; omitting directory '" + operand + "'");
+                        continue;
+                    }
+                    if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+                        err.println("cp: cannot copy a directory, '" + operand + "', into itself");
+                        continue;
+                    }
+                }
+                try {
+                    copier.copy(source, target);
+                } finally {
+                    changed(target);
+                }
+            }
+            out.println("cp: " + copier.finish().describe());
+        } catch (IOException e) {
+            if (stopped()) {
+                return;
+            }
+            err.println("cp: " + DirectoryWalker.describe(e));
+        }
+    }
+
+    static void copyFile(File source, File destination) throws IOException {
+        FileTransfer.copy(source.toPath(), destination.toPath());
+    }
+
+    static void listDirectory(String[] parts) {
+        listDirectory(Session.console(), parts, System.in, System.out, System.err);
+    }
+
+    static void listDirectory(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        File dir = session.cwd().toFile(); // Default to the current directory
+        boolean showAll = false; // Option to show hidden files
+        boolean reverseOrder = false; // Option to reverse order
+        boolean unsorted = false; // Option to print entries in directory order
+        boolean longFormat = false; // Option to show type, permissions, owner, size and mtime
+
+        for (int i = 1; i < parts.length; i++) {
+            if ("-a".equals(parts[i])) {
+                showAll = true; // Show hidden files
+            } else if ("-r".equals(parts[i])) {
+                reverseOrder = true; // Reverse the listing order
+            } else if ("-U".equals(parts[i])) {
+                unsorted = true; // Stream entries as the file system returns them
+            } else if ("-l".equals(parts[i])) {
+                longFormat = true; // Long listing
+            } else {
+                dir = session.resolve(parts[i]).toFile(); // Use the specified directory
+            }
+        }
+
+        if (!dir.exists() || !dir.isDirectory()) {
+            out.println("No files found or directory cannot be read.");
+            return;
+        }
+
+        if (!unsorted && ListingCache.INSTANCE.enabled() && listCached(dir, showAll, reverseOrder, longFormat, out, err)) {
+            return;
+        }
+
+        Comparator<String> order = reverseOrder ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath());
+             ExternalSort sorted = new ExternalSort(order)) {
+            LongListing longListing = longFormat ? new LongListing(dir.toPath(), out, err) : null;
+            Consumer<String> printer = longFormat ? longListing : out::println;
+            out.println("Listing directory: ");
+            for (Path entry : entries) {
+                String file = entry.getFileName().toString();
+                if (!showAll && file.startsWith(".")) {
+                    continue;
+                }
+                if (unsorted) {
+                    printer.accept(file);
+                } else {
+                    // Kept in memory up to the sort budget, spilled to sorted runs on disk beyond it
+                    sorted.add(file);
+                }
+            }
+            sorted.forEachSorted(printer);
+            if (longListing != null) {
+                longListing.flush();
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            err.println("ls: cannot read directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    // Drops cached ls listings that a builtin's change to path makes stale; a no-op with the cache off
+    static void changed(Path path) {
+        ListingCache.INSTANCE.invalidate(path);
+    }
+
+    // Serves a sorted listing from the cache; false when the directory is too large or cannot be watched
+    private static boolean listCached(File dir, boolean showAll, boolean reverseOrder, boolean longFormat,
+                                      PrintStream out, PrintStream err) {
+        List<String> names;
+        try {
+            names = ListingCache.INSTANCE.list(dir.toPath());
+        } catch (IOException e) {
+            err.println("ls: cannot read directory " + dir + ": " + e.getMessage());
+            return true;
+        }
+        if (names == null) {
+            return false;
+        }
+
+        LongListing longListing = longFormat ? new LongListing(dir.toPath(), out, err) : null;
+        Consumer<String> printer = longFormat ? longListing : out::println;
+        out.println("Listing directory: ");
+        for (int i = 0; i < names.size(); i++) {
+            String file = names.get(reverseOrder ? names.size() - 1 - i : i);
+            if (showAll || !file.startsWith(".")) {
+                printer.accept(file);
+            }
+        }
+        if (longListing != null) {
+            longListing.flush();
+        }
+        return true;
+    }
+
+    private static void statsCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        if (parts.length > 1 && "--reset".equals(parts[1])) {
+            CommandMetrics.INSTANCE.reset();
+            return;
+        }
+        if (parts.length > 1 && "--prometheus".equals(parts[1])) {
+            if (parts.length < 3) {
+                err.println("stats: Missing file for --prometheus");
+                return;
+            }
+            try {
+                CommandMetrics.INSTANCE.exportPrometheus(session.resolve(parts[2]));
+            } catch (IOException e) {
+                err.println("stats: " + e.getMessage());
+            }
+            return;
+        }
+        CommandMetrics.INSTANCE.printStats(out);
+        ListingCache.INSTANCE.printStats(out);
+    }
+
+    // Reports on err, like a shell's time, so the command's own output can still be redirected or piped.
+    // The figures are for the whole process, so work on pipeline, fork-join and copy threads counts too
+    private static void timeCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        if (parts.length == 1) {
+            err.println("time: Missing command");
+            return;
+        }
+        Parser.SimpleCommand timed = new Parser.SimpleCommand(Arrays.copyOfRange(parts, 1, parts.length), List.of());
+        ResourceUsage start = ResourceUsage.start();
+        runCommand(session, timed, false, in, out, err);
+        // Output still sitting in a buffer was produced by the command, so it counts as written
+        out.flush();
+        ResourceUsage used = ResourceUsage.end().since(start);
+
+        err.printf(Locale.ROOT, "real      %10.3f ms%n", used.wallNanos() / 1e6);
+        err.println("cpu       " + (used.cpuNanos() < 0 ? "       n/a" : String.format(Locale.ROOT, "%10.3f ms", used.cpuNanos() / 1e6))
+                + " (process)");
+        err.println("read      " + bytes(used.bytesRead()) + " (read syscalls)");
+        err.println("disk read " + bytes(used.storageBytesRead()) + " (from storage, mapped files included)");
+        err.println("written   " + bytes(used.bytesWritten()));
+        err.println("allocated " + bytes(used.allocatedBytes()) + " (live threads)");
+    }
+
+    private static String bytes(long count) {
+        return count < 0 ? "       n/a" : String.format("%10d bytes", count);
+    }
+
+    private static void jobsCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        session.jobs().print(out);
+    }
+
+    private static void waitCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        List<Jobs.Job> jobs = new ArrayList<>();
+        if (parts.length == 1) {
+            jobs.addAll(session.jobs().list());
+        }
+        for (int i = 1; i < parts.length; i++) {
+            Jobs.Job job = findJob(session, parts[i]);
+            if (job == null) {
+                err.println("wait: no such job: " + parts[i]);
+            } else {
+                jobs.add(job);
+            }
+        }
+        for (Jobs.Job job : jobs) {
+            if (!awaitJob(session, job, out, err)) {
+                return;
+            }
+        }
+    }
+
+    private static void fgCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        Jobs.Job job = parts.length > 1 ? findJob(session, parts[1]) : session.jobs().latest();
+        if (job == null) {
+            err.println(parts.length > 1 ? "fg: no such job: " + parts[1] : "fg: no current job");
+            return;
+        }
+        out.println(job.command);
+        awaitJob(session, job, out, err);
+    }
+
+    private static void killCommand(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err) {
+        if (parts.length == 1) {
+            err.println("kill: Missing job id");
+            return;
+        }
+        for (int i = 1; i < parts.length; i++) {
+            Jobs.Job job = findJob(session, parts[i]);
+            if (job == null) {
+                err.println("kill: no such job: " + parts[i]);
+            } else if (session.jobs().kill(job)) {
+                out.println(Jobs.format(job));
+            } else {
+                err.println("kill: job " + job.id + " has already finished");
+            }
+        }
+    }
+
+    // Accepts "3" as well as the shell's "%3"
+    private static Jobs.Job findJob(Session session, String id) {
+        try {
+            return session.jobs().get(Integer.parseInt(id.startsWith("%") ? id.substring(1) : id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean awaitJob(Session session, Jobs.Job job, PrintStream out, PrintStream err) {
+        try {
+            return session.jobs().await(job, out);
+        } catch (IOException e) {
+            err.println("Error reading output of job " + job.id + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    static void redirectCommand(String command) {
+        execute(command, System.in, System.out, System.err);
+    }
+
+    static void executeCommand2(String command) {
+        if (command.startsWith("cat")) {
+            System.out.println("Executing command: " + command);
+        } else {
+            System.out.println("Executing command: " + command);
+        }
+    }
+
+    // Size of the user-space buffer in front of each pipe; together with the OS pipe buffer
+    // this bounds how far a stage can run ahead of its consumer.
+    static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+    static void pipeCommand(String command, PrintStream output) {
+        Parser.Pipeline pipeline;
+        try {
+            pipeline = Parser.parse(command);
+        } catch (IllegalArgumentException e) {
+            pipeline = null;
+        }
+        if (pipeline == null || pipeline.stages().size() < 2) {
+            output.println("Invalid pipe command. Use format: command1 | command2");
+            return;
+        }
+        runPipeline(Session.console(), pipeline.stages(), System.in, System.out, output);
+    }
+
+    private static void runPipeline(Session session, List<Parser.SimpleCommand> commands, InputStream in,
+                                    PrintStream terminal, PrintStream err) {
+        List<List<Parser.SimpleCommand>> segments = segments(session, commands);
+        // Every segment but the last runs on its own thread and writes into a bounded OS pipe, so the
+        // stages run concurrently and a fast producer blocks instead of buffering the whole output.
+        List<Thread> stages = new ArrayList<>();
+        InputStream upstream = in;
+        try {
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Pipe pipe = Pipe.open();
+                InputStream stageIn = upstream;
+                PrintStream stageOut = new ChannelPrintStream(pipe.sink(), PIPE_BUFFER_SIZE, true, false);
+                List<Parser.SimpleCommand> segment = segments.get(i);
+                int index = i;
+                stages.add(Threads.start("pipe-stage-" + i,
+                        () -> runStage(session, segment, index, stageIn, stageOut, err, true)));
+                upstream = Channels.newInputStream(pipe.source());
+            }
+        } catch (IOException e) {
+            err.println("Error creating pipe: " + e.getMessage());
+            if (upstream != in) {
+                closeQuietly(upstream);
+            }
+            joinStages(stages);
+            return;
+        }
+
+        // The last segment writes to the terminal from the calling thread
+        runStage(session, segments.get(segments.size() - 1), segments.size() - 1, upstream, terminal, err, false);
+        joinStages(stages);
+    }
+
+    /**
+     * Splits a pipe into the units that get a thread each: a builtin alone, or a run of adjacent external
+     * programs, which are connected to each other by OS pipes. A run ends where output is redirected to a
+     * file or the next stage reads from one.
+     */
+    private static List<List<Parser.SimpleCommand>> segments(Session session, List<Parser.SimpleCommand> commands) {
+        List<List<Parser.SimpleCommand>> segments = new ArrayList<>(commands.size());
+        List<Parser.SimpleCommand> run = null;
+        for (Parser.SimpleCommand command : commands) {
+            boolean external = COMMANDS.lookup(command.name()) == null
+                    && ExternalCommand.find(session, command.name()) != null;
+            if (!external) {
+                segments.add(List.of(command));
+                run = null;
+                continue;
+            }
+            if (run == null || redirects(run.get(run.size() - 1), 1) || redirects(command, 0)) {
+                run = new ArrayList<>(2);
+                segments.add(run);
+            }
+            run.add(command);
+        }
+        return segments;
+    }
+
+    private static boolean redirects(Parser.SimpleCommand command, int fd) {
+        for (Parser.Redirect redirect : command.redirects()) {
+            if (redirect.fd() == fd) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void runStage(Session session, List<Parser.SimpleCommand> segment, int index, InputStream in,
+                                 PrintStream out, PrintStream err, boolean closeOut) {
+        boolean first = index == 0;
+        CliEvents.PipeStageEvent event = new CliEvents.PipeStageEvent();
+        event.begin();
+        try {
+            if (segment.size() == 1) {
+                runCommand(session, segment.get(0), !first, in, out, err);
+            } else {
+                long start = System.nanoTime();
+                ExternalCommand.run(session, segment, !first, in, out, err);
+                long elapsed = System.nanoTime() - start;
+                // The programs run concurrently; each is charged the lifetime of the group
+                for (Parser.SimpleCommand command : segment) {
+                    CommandMetrics.INSTANCE.record(metricName(command), elapsed);
+                }
+            }
+        } finally {
+            // Closing our ends tells the neighbours we are done: EOF downstream, broken pipe upstream.
+            // The first stage reads the caller's input, which is not ours to close.
+            if (closeOut) {
+                out.close();
+            } else {
+                out.flush();
+            }
+            if (!first) {
+                closeQuietly(in);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = index;
+                event.commands = String.join(" | ", segment.stream().map(Parser.SimpleCommand::name).toList());
+                event.commit();
+            }
+        }
+    }
+
+    private static void joinStages(List<Thread> stages) {
+        for (Thread stage : stages) {
+            try {
+                stage.join();
+            } catch (InterruptedException e) {
+                stages.forEach(Thread::interrupt);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.os;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered PrintStream over a channel. Byte-level commands such as {@code cat} can flush it and
+ * write to the channel directly instead of pushing the data through the stream.
+ */
+public class ChannelPrintStream extends PrintStream {
+
+    private final WritableByteChannel channel;
+    private final boolean transfers;
+    private final String path;
+
+    /**
+     * @param transfers whether the channel is a file or pipe that {@code FileChannel.transferTo} can
+     *                  target directly; a terminal is written through direct buffers instead
+     */
+    public ChannelPrintStream(WritableByteChannel channel, int bufferSize, boolean transfers, boolean autoFlush) {
+        this(channel, bufferSize, transfers, autoFlush, null);
+    }
+
+    /** @param path the file behind {@code channel} when it is a redirection, reported in Flight Recorder events */
+    ChannelPrintStream(WritableByteChannel channel, int bufferSize, boolean transfers, boolean autoFlush, String path) {
+        super(new BufferedOutputStream(new ChannelOutput(channel, path), bufferSize), autoFlush);
+        this.channel = channel;
+        this.transfers = transfers;
+        this.path = path;
+    }
+
+    /** Flushes anything printed so far and returns the channel, so raw writes land after it. */
+    public WritableByteChannel channel() {
+        flush();
+        return channel;
+    }
+
+    public boolean acceptsTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Writes {@code bytes} to the channel through {@code write}, reporting them like a buffer flush: as a
+     * redirect write for a file, or as a stall if a pipe blocked. Used by {@code cat}'s raw paths.
+     */
+    long timedWrite(ChannelWrite write) throws IOException {
+        WritableByteChannel target = channel();
+        return ChannelOutput.timed(target, path, write);
+    }
+
+    @FunctionalInterface
+    interface ChannelWrite {
+        /** @return the number of bytes written */
+        long write() throws IOException;
+    }
+
+    // Plain channel writes, timed for the pipe stall and redirect write events. Unlike
+    // Channels.newOutputStream it takes no blocking lock, so a reader of the same socket cannot stall it.
+    private static final class ChannelOutput extends OutputStream {
+        private final WritableByteChannel channel;
+        private final String path;
+
+        ChannelOutput(WritableByteChannel channel, String path) {
+            this.channel = channel;
+            this.path = path;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            timed(channel, path, () -> {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                return len;
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        static long timed(WritableByteChannel channel, String path, ChannelWrite write) throws IOException {
+            if (channel instanceof Pipe.SinkChannel) {
+                CliEvents.PipeStallEvent event = new CliEvents.PipeStallEvent();
+                event.begin();
+                long written;
+                try {
+                    written = write.write();
+                } catch (IOException e) {
+                    // The next stage stopped reading. PrintStream hides the error from the command, so
+                    // interrupt it instead, as SIGPIPE would: its next blocking call fails and it stops.
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.bytes = written;
+                    event.commit();
+                }
+                return written;
+            }
+            if (path != null) {
+                CliEvents.RedirectWriteEvent event = new CliEvents.RedirectWriteEvent();
+                event.begin();
+                long written = write.write();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.path = path;
+                    event.bytes = written;
+                    event.commit();
+                }
+                return written;
+            }
+            return write.write();
+        }
+    }
+}
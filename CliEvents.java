@@ -0,0 +1,103 @@
+package org.os;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events emitted by the interpreter. They cost nothing measurable unless a recording is
+ * running, e.g. {@code java -XX:StartFlightRecording:filename=cli.jfr org.os.CLI}; afterwards
+ * {@code jfr print --categories "Command Line Interpreter" cli.jfr} shows where a session spent its time.
+ *
+ * <p>Event fields are filled in only after {@code shouldCommit()}, so a disabled event does no formatting.
+ */
+final class CliEvents {
+
+    static final String CATEGORY = "Command Line Interpreter";
+
+    private CliEvents() {
+    }
+
+    @Name("org.os.Command")
+    @Label("Command")
+    @Category(CATEGORY)
+    @Description("One command dispatched by the interpreter, builtin or external")
+    @StackTrace(false)
+    static final class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        String arguments;
+
+        @Label("Builtin")
+        boolean builtin;
+    }
+
+    @Name("org.os.PipeStage")
+    @Label("Pipe Stage")
+    @Category(CATEGORY)
+    @Description("Lifetime of one stage of a pipe; adjacent external programs form a single stage")
+    @StackTrace(false)
+    static final class PipeStageEvent extends Event {
+        @Label("Stage")
+        int stage;
+
+        @Label("Commands")
+        String commands;
+    }
+
+    @Name("org.os.PipeStall")
+    @Label("Pipe Stall")
+    @Category(CATEGORY)
+    @Description("A write into a pipe that blocked because the next stage was not reading")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class PipeStallEvent extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.os.RedirectWrite")
+    @Label("Redirect Write")
+    @Category(CATEGORY)
+    @Description("A block of command output written to a redirected file")
+    @StackTrace(false)
+    static final class RedirectWriteEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.os.FileTransfer")
+    @Label("File Transfer")
+    @Category(CATEGORY)
+    @Description("A file copied or moved, and how")
+    @StackTrace(false)
+    static final class FileTransferEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Source")
+        String source;
+
+        @Label("Target")
+        String target;
+
+        @Label("Strategy")
+        String strategy;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,15 @@
+package org.os;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * A builtin command. It reads from {@code in} and writes to {@code out} / {@code err} only,
+ * so the same command can run at the prompt, at any position of a pipe or with its output redirected.
+ * Relative paths are resolved against the {@code session} it runs in.
+ */
+@FunctionalInterface
+public interface Command {
+
+    void execute(Session session, String[] parts, InputStream in, PrintStream out, PrintStream err);
+}
@@ -4,12 +4,39 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import java.io.*;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class CommandLIneInterpreterTest {
+    private static final String NL = System.lineSeparator();
+
+    // Relative names resolve against the interpreter's working directory, not the JVM's
+    private static File inWorkingDir(String name) {
+        return new File(System.getProperty("user.dir"), name);
+    }
+
     //Redirect Command Test
     @Test
     void testRedirectCommand() {
@@ -19,11 +46,11 @@ public class CommandLIneInterpreterTest {
         String command = "cat testFile.txt > output.txt";
         CLI.redirectCommand(command);
 
-        File outputFile = new File("output.txt");
+        File outputFile = inWorkingDir("output.txt");
         assertTrue(outputFile.exists(), "Output file should exist.");
 
         // Cleanup after test
-        new File("testFile.txt").delete();
+        inWorkingDir("testFile.txt").delete();
         outputFile.delete();
     }
 
@@ -36,7 +63,7 @@ public class CommandLIneInterpreterTest {
         String[] removeParts = {"rm", "testFile.txt"};
         CLI.removeFile(removeParts);
 
-        File file = new File("testFile.txt");
+        File file = inWorkingDir("testFile.txt");
         assertFalse(file.exists(), "File should be removed.");
     }
 
@@ -46,7 +73,7 @@ public class CommandLIneInterpreterTest {
         String[] createParts = {"touch", "testFile.txt"};
         CLI.touchFile(createParts);
 
-        try (FileWriter writer = new FileWriter("testFile.txt")) {
+        try (FileWriter writer = new FileWriter(inWorkingDir("testFile.txt"))) {
             writer.write("Hello World");
         } catch (Exception e) {
             fail("Failed to write to file.");
@@ -56,7 +83,7 @@ public class CommandLIneInterpreterTest {
         CLI.displayFile(displayParts);
 
         // Cleanup after test
-        new File("testFile.txt").delete();
+        inWorkingDir("testFile.txt").delete();
     }
 
     // Move File Test
@@ -68,8 +95,8 @@ public class CommandLIneInterpreterTest {
         String[] moveParts = {"mv", "testFile.txt", "newTestFile.txt"};
         CLI.moveFile(moveParts);
 
-        File oldFile = new File("testFile.txt");
-        File newFile = new File("newTestFile.txt");
+        File oldFile = inWorkingDir("testFile.txt");
+        File newFile = inWorkingDir("newTestFile.txt");
         assertFalse(oldFile.exists(), "Old file should not exist.");
         assertTrue(newFile.exists(), "New file should be created.");
 
@@ -101,7 +128,7 @@ public class CommandLIneInterpreterTest {
         String testDirName = "testDir";
 
         CLI.executeCommand("mkdir " + testDirName);
-        File dir = new File(testDirName);
+        File dir = inWorkingDir(testDirName);
         assertTrue(dir.exists(), "Directory should have been created");
         dir.delete();
     }
@@ -149,7 +176,7 @@ public class CommandLIneInterpreterTest {
     @AfterEach
     public void tearDown2() {
         // Clean up the created file after each test
-        File file = new File(testFileName);
+        File file = inWorkingDir(testFileName);
         if (file.exists()) {
             file.delete();
         }
@@ -159,14 +186,14 @@ public class CommandLIneInterpreterTest {
     public void testCreateFile() {
         String[] parts = {"touch", testFileName};
         CLI.touchFile(parts);
-        File file = new File(testFileName);
+        File file = inWorkingDir(testFileName);
         assertTrue(file.exists(), "File should be created by the touch command.");
     }
 
     @Test
     public void testFileAlreadyExists() {
         // Create the file before testing
-        File file = new File(testFileName);
+        File file = inWorkingDir(testFileName);
         file.delete();
         assertFalse(file.exists(), "Ensure test starts with no existing file.");
 
@@ -207,16 +234,19 @@ public class CommandLIneInterpreterTest {
 
     @Test
     public void testChangeToInvalidDirectory() {
+        // Other fixtures may have moved user.dir after originalDir was saved
+        String before = System.getProperty("user.dir");
         String[] parts = {"cd", "invalid_directory"};
         CLI.changeDirectory(parts);
-        assertEquals(originalDir.toString(), System.getProperty("user.dir"));
+        assertEquals(before, System.getProperty("user.dir"));
     }
 
     @Test
     public void testChangeToParentDirectory() {
+        Path before = Paths.get(System.getProperty("user.dir"));
         String[] parts = {"cd", ".."};
         CLI.changeDirectory(parts);
-        assertEquals(originalDir.getParent().toString(), System.getProperty("user.dir"));
+        assertEquals(before.getParent().toString(), System.getProperty("user.dir"));
     }
 
     // Help Test
@@ -355,7 +385,7 @@ public class CommandLIneInterpreterTest {
 
     @Test
     public void testRedirectCommand2() throws IOException {
-        File testFile = new File("test_output.txt");
+        File testFile = inWorkingDir("test_output.txt");
         if (testFile.exists()) {
             testFile.delete();
         }
@@ -373,7 +403,7 @@ public class CommandLIneInterpreterTest {
 
     @Test
     public void testAppendRedirectCommand() throws IOException {
-        File testFile = new File("test_append_output.txt");
+        File testFile = inWorkingDir("test_append_output.txt");
         testFile.delete(); // Ensure the file is clean before the test
 
         CLI.redirectCommand("pwd > test_append_output.txt");
@@ -445,5 +475,858 @@ public class CommandLIneInterpreterTest {
 
         assertEquals("Unknown command for piped input: unknownCommand", errContent.toString().trim());
     }
-}
 
+    @Test
+    public void testMultiStagePipe() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream previous = System.out;
+        System.setOut(new PrintStream(captured));
+        try {
+            CLI.pipeCommand("ls | cat | cat | cat", System.err);
+        } finally {
+            System.setOut(previous);
+        }
+
+        assertTrue(captured.toString().startsWith("Listing directory:"));
+        assertEquals("", errContent.toString().trim());
+    }
+
+    @Test
+    public void testPipeWithEmptyStage() {
+        CLI.pipeCommand("ls | | cat", System.err);
+
+        assertEquals("Invalid pipe command. Use format: command1 | command2", errContent.toString().trim());
+    }
+
+    @Test
+    public void testBuiltinsAsPipeStages() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream previous = System.out;
+        System.setOut(new PrintStream(captured));
+        try {
+            CLI.pipeCommand("ls " + testDir.getAbsolutePath() + " -r | cat", System.err);
+        } finally {
+            System.setOut(previous);
+        }
+
+        String[] lines = captured.toString().split(System.lineSeparator());
+        assertEquals("file2.txt", lines[1]);
+        assertEquals("file1.txt", lines[2]);
+    }
+
+    @Test
+    public void testExecuteWritesToGivenStream() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        CLI.execute("pwd", InputStream.nullInputStream(), new PrintStream(captured), System.err);
+
+        assertEquals(System.getProperty("user.dir") + System.lineSeparator(), captured.toString());
+    }
+
+    @Test
+    public void testCatRedirectPreservesBytes() throws IOException {
+        byte[] content = {'a', '\r', '\n', 0, (byte) 0xff, 'b'};
+        File source = new File(testDir, "binary.bin");
+        File target = new File(testDir, "copy.bin");
+        Files.write(source.toPath(), content);
+
+        CLI.redirectCommand("cat " + source.getAbsolutePath() + " > " + target.getAbsolutePath());
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testCatThroughPipePreservesBytes() throws IOException {
+        byte[] content = new byte[3 * CLI.PIPE_BUFFER_SIZE + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File source = new File(testDir, "large.bin");
+        File target = new File(testDir, "piped.bin");
+        Files.write(source.toPath(), content);
+
+        CLI.redirectCommand("cat " + source.getAbsolutePath() + " | cat | cat > " + target.getAbsolutePath());
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testCopyStrategiesPreserveContent() throws IOException {
+        byte[] content = new byte[3 * 4096 + 100];
+        for (int i = 8192; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File source = new File(testDir, "source.bin");
+        Files.write(source.toPath(), content);
+        Files.setLastModifiedTime(source.toPath(), FileTime.fromMillis(1_000_000_000_000L));
+
+        for (FileTransfer.Strategy strategy : new FileTransfer.Strategy[]{
+                FileTransfer.Strategy.NATIVE, FileTransfer.Strategy.TRANSFER, FileTransfer.Strategy.BUFFERED}) {
+            File target = new File(testDir, strategy + ".bin");
+            FileTransfer.copy(source.toPath(), target.toPath(), strategy);
+
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()), strategy.toString());
+            assertEquals(Files.getLastModifiedTime(source.toPath()), Files.getLastModifiedTime(target.toPath()));
+        }
+    }
+
+    @Test
+    public void testMoveRenamesOnSameFileSystem() throws IOException {
+        File source = new File(testDir, "file1.txt");
+        File target = new File(testDir, "moved.txt");
+
+        assertEquals(FileTransfer.Strategy.RENAME, FileTransfer.move(source.toPath(), target.toPath()));
+        assertFalse(source.exists());
+        assertTrue(target.exists());
+    }
+
+    @Test
+    public void testMovePromptReadsOnlyTheAnswer() throws IOException {
+        InputStream in = new ByteArrayInputStream("y\npwd\n".getBytes(StandardCharsets.UTF_8));
+
+        Output output = run(in, "mv file1.txt file2.txt");
+
+        assertTrue(output.out().startsWith("Overwrite file2.txt? (y/n): "));
+        assertFalse(new File(testDir, "file1.txt").exists());
+        assertEquals("pwd\n", new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                "The lines after the answer belong to the next command.");
+    }
+
+    @Test
+    public void testParallelMoveWithNoClobber() throws IOException {
+        File target = new File(testDir, "directory1");
+        File existing = new File(target, "file2.txt");
+        Files.writeString(existing.toPath(), "keep");
+        File file3 = new File(testDir, "file3.txt");
+        file3.createNewFile();
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        CLI.execute("mv -n -j 2 " + new File(testDir, "file1.txt").getAbsolutePath() + " "
+                        + new File(testDir, "file2.txt").getAbsolutePath() + " " + file3.getAbsolutePath() + " "
+                        + target.getAbsolutePath(),
+                InputStream.nullInputStream(), new PrintStream(captured), System.err);
+
+        assertTrue(new File(target, "file1.txt").exists());
+        assertTrue(new File(target, "file3.txt").exists());
+        assertTrue(new File(testDir, "file2.txt").exists(), "Existing target should not be overwritten with -n.");
+        assertEquals("keep", Files.readString(existing.toPath()));
+        assertTrue(captured.toString().contains("mv: 2 moved, 1 skipped, 0 failed"));
+    }
+
+    @Test
+    public void testUnsortedListingStreamsAllEntries() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        CLI.execute("ls -U " + testDir.getAbsolutePath(), InputStream.nullInputStream(),
+                new PrintStream(captured), System.err);
+
+        String output = captured.toString();
+        assertTrue(output.contains("file1.txt"));
+        assertTrue(output.contains("file2.txt"));
+        assertTrue(output.contains("directory1"));
+    }
+
+    @Test
+    public void testExternalSortSpillsAndMerges() throws IOException {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("entry-" + (i * 7919 % 1000));
+        }
+        List<String> sorted = new ArrayList<>();
+        try (ExternalSort sort = new ExternalSort(Comparator.naturalOrder(), 4096)) {
+            for (String value : values) {
+                sort.add(value);
+            }
+            sort.forEachSorted(sorted::add);
+            assertTrue(sort.spilledRuns() > 1, "Small budget should force spilling.");
+        }
+
+        values.sort(null);
+        assertEquals(values, sorted);
+    }
+
+    @Test
+    public void testLongListing() throws IOException {
+        Files.writeString(new File(testDir, "file1.txt").toPath(), "12345");
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        CLI.execute("ls -l " + testDir.getAbsolutePath(), InputStream.nullInputStream(),
+                new PrintStream(captured), System.err);
+
+        String[] lines = captured.toString().split(System.lineSeparator());
+        assertEquals(4, lines.length);
+        assertTrue(lines[1].startsWith("d") && lines[1].endsWith(" directory1"));
+        assertTrue(lines[2].startsWith("-") && lines[2].matches(".* 5 .* file1\\.txt"));
+
+        // An entry that is gone by the time it is described
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        LongListing listing = new LongListing(testDir.toPath(), System.out, new PrintStream(errors));
+        listing.accept("vanished.txt");
+        listing.flush();
+        assertEquals("ls: cannot access 'vanished.txt': No such file or directory" + NL, errors.toString());
+    }
+
+    @Test
+    public void testListingCacheHitsAndInvalidates() throws Exception {
+        ListingCache cache = new ListingCache(true, 1024 * 1024);
+        Path dir = testDir.toPath();
+
+        List<String> first = cache.list(dir);
+        assertSame(first, cache.list(dir), "Unchanged directory should be served from the cache.");
+        cache.invalidate(dir.resolve("file3.txt"));
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        cache.printStats(new PrintStream(captured));
+        assertTrue(captured.toString().contains("1 invalidations"), captured.toString());
+        assertNotSame(first, cache.list(dir), "A change in the directory should drop its listing.");
+
+        // Builtins invalidate before they return, so no watcher notification has to be waited for
+        ListingCache.INSTANCE.setEnabled(true);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Session session = new Session(dir, InputStream.nullInputStream(), new PrintStream(out),
+                    new PrintStream(new ByteArrayOutputStream()));
+            CLI.execute(session, "ls");
+            CLI.execute(session, "touch file3.txt");
+            out.reset();
+            CLI.execute(session, "ls");
+            assertTrue(out.toString().contains("file3.txt"), out.toString());
+            CLI.execute(session, "rm file3.txt");
+            out.reset();
+            CLI.execute(session, "ls");
+            assertFalse(out.toString().contains("file3.txt"), out.toString());
+            CLI.execute(session, "echo x > file4.txt");
+            out.reset();
+            CLI.execute(session, "ls");
+            assertTrue(out.toString().contains("file4.txt"), out.toString());
+        } finally {
+            ListingCache.INSTANCE.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testParserHandlesQuotesEscapesAndOperators() {
+        Parser.Pipeline pipeline = Parser.parse("cat  'a b'  \"c \\\"d\\\"\" e\\ f < in.txt | cat >> 'out file'");
+
+        assertEquals(2, pipeline.stages().size());
+        Parser.SimpleCommand first = pipeline.stages().get(0);
+        assertArrayEquals(new String[]{"cat", "a b", "c \"d\"", "e f"}, first.argv());
+        assertEquals(new Parser.Redirect(0, Parser.RedirectType.READ, "in.txt"), first.redirects().get(0));
+        assertEquals(new Parser.Redirect(1, Parser.RedirectType.APPEND, "out file"),
+                pipeline.stages().get(1).redirects().get(0));
+        assertNull(Parser.parse("   "));
+        assertThrows(IllegalArgumentException.class, () -> Parser.parse("cat 'unterminated"));
+        assertThrows(IllegalArgumentException.class, () -> Parser.parse("ls >"));
+        assertFalse(pipeline.background());
+        assertTrue(Parser.parse("cat a.txt 2>&1 | cat&").background());
+        assertThrows(IllegalArgumentException.class, () -> Parser.parse("cat a & ls"));
+    }
+
+    @Test
+    public void testQuotedPathsAndInputRedirect() throws IOException {
+        File source = new File(testDir, "name with spaces.txt");
+        File target = new File(testDir, "out.txt");
+        Files.writeString(source.toPath(), "quoted");
+
+        CLI.executeCommand("cat < \"" + source.getAbsolutePath() + "\" > '" + target.getAbsolutePath() + "'");
+
+        assertEquals("quoted", Files.readString(target.toPath()));
+    }
+
+    @Test
+    public void testRegisteredCommandIsDispatched() {
+        CLI.COMMANDS.register("greet", (session, parts, in, out, err) -> out.println("hello " + parts[1]));
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        CLI.execute("greet world | cat", InputStream.nullInputStream(), new PrintStream(captured), System.err);
+
+        assertEquals("hello world" + System.lineSeparator(), captured.toString());
+    }
+
+    @Test
+    public void testRunScriptSkipsCommentsAndStopsAtEof() throws IOException {
+        String script = "# setup\n\npwd\n   \nls " + testDir.getAbsolutePath() + "\n";
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        long commands = CLI.runScript(Session.console(), new BufferedReader(new StringReader(script)), InputStream.nullInputStream(),
+                new PrintStream(captured), System.err);
+
+        assertEquals(2, commands);
+        String output = captured.toString();
+        assertTrue(output.startsWith(System.getProperty("user.dir") + System.lineSeparator()));
+        assertTrue(output.contains("file1.txt"));
+    }
+
+    @Test
+    public void testSessionsKeepSeparateDirectories() throws Exception {
+        File dirA = new File(testDir, "directory1");
+        String consoleDir = System.getProperty("user.dir");
+        ByteArrayOutputStream outA = new ByteArrayOutputStream();
+        ByteArrayOutputStream outB = new ByteArrayOutputStream();
+        Session sessionA = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(outA), System.err);
+        Session sessionB = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(outB), System.err);
+
+        Thread threadA = new Thread(() -> {
+            CLI.execute(sessionA, "cd directory1");
+            CLI.execute(sessionA, "touch a.txt");
+        });
+        Thread threadB = new Thread(() -> CLI.execute(sessionB, "touch b.txt"));
+        threadA.start();
+        threadB.start();
+        threadA.join();
+        threadB.join();
+
+        assertEquals(dirA.getAbsoluteFile().toPath(), sessionA.cwd());
+        assertEquals(testDir.getAbsoluteFile().toPath(), sessionB.cwd());
+        assertTrue(new File(dirA, "a.txt").exists());
+        assertTrue(new File(testDir, "b.txt").exists());
+        assertEquals(consoleDir, System.getProperty("user.dir"), "Sessions must not touch the console directory.");
+        assertFalse(outB.toString().contains("Changed directory"));
+    }
+
+    @Test
+    public void testServerRunsEachConnectionInItsOwnSession() throws Exception {
+        assertThrows(IllegalArgumentException.class,
+                () -> InterpreterServer.open(InterpreterServer.parseAddress("0"), testDir.toPath(), null),
+                "TCP must not be served without a token.");
+        try (InterpreterServer server = InterpreterServer.open(InterpreterServer.parseAddress("0"), testDir.toPath(),
+                "secret")) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            acceptor.start();
+
+            String first = converse(server, "secret\ncd directory1\npwd\nexit\nnever run\n");
+            String second = converse(server, "secret\npwd\n");
+            String intruder = converse(server, "guess\npwd\n");
+
+            assertTrue(first.contains(new File(testDir, "directory1").getAbsolutePath() + System.lineSeparator()));
+            assertFalse(first.contains("Unknown command"), "Nothing after exit may run.");
+            assertTrue(second.contains(testDir.getAbsolutePath() + System.lineSeparator()));
+            assertEquals("Authentication failed" + System.lineSeparator(), intruder);
+            server.close();
+            acceptor.join();
+        }
+    }
+
+    @Test
+    public void testServerSocketIsOwnerOnlyAndOnlyReplacedWhenStale() throws IOException {
+        Path notSocket = new File(testDir, "file1.txt").toPath();
+        assertThrows(IOException.class, () -> InterpreterServer.open(InterpreterServer.parseAddress("unix:" + notSocket),
+                testDir.toPath(), null));
+        assertTrue(Files.exists(notSocket), "A file that is not a socket must be left alone.");
+
+        Path socket = testDir.toPath().resolve("cli.sock");
+        SocketAddress address = InterpreterServer.parseAddress("unix:" + socket);
+        ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(address).close();
+        assertTrue(Files.exists(socket));
+        try (InterpreterServer server = InterpreterServer.open(address, testDir.toPath(), null)) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socket)));
+            assertThrows(IOException.class, () -> InterpreterServer.open(address, testDir.toPath(), null),
+                    "A socket someone is listening on must not be taken over.");
+            SocketChannel.open(server.address()).close();
+        }
+        assertFalse(Files.exists(socket));
+    }
+
+    private static String converse(InterpreterServer server, String script) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server.address())) {
+            channel.write(ByteBuffer.wrap(script.getBytes(StandardCharsets.UTF_8)));
+            channel.shutdownOutput();
+            return new String(Channels.newInputStream(channel).readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testBackgroundJobsAreCollectedByWait() throws IOException {
+        Files.write(new File(testDir, "file1.txt").toPath(), "first\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(testDir, "file2.txt").toPath(), "second\n".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(captured), System.err);
+
+        CLI.execute(session, "cat file1.txt &");
+        CLI.execute(session, "cat file2.txt | cat &");
+        CLI.execute(session, "wait");
+
+        String nl = System.lineSeparator();
+        assertEquals("[1] cat file1.txt" + nl + "[2] cat file2.txt | cat" + nl + "first\nsecond\n", captured.toString());
+        assertTrue(session.jobs().list().isEmpty());
+    }
+
+    @Test
+    public void testKillInterruptsJob() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CLI.COMMANDS.register("block", (session, parts, in, out, err) -> {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+                out.println("not interrupted");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(captured), System.err);
+
+        CLI.execute(session, "block &");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        CLI.execute(session, "jobs");
+        CLI.execute(session, "kill %1");
+        CLI.execute(session, "wait 1");
+
+        String output = captured.toString();
+        assertTrue(output.contains("[1] Running  block"));
+        assertTrue(output.contains("[1] Killed   block"));
+        assertFalse(output.contains("not interrupted"));
+    }
+
+    @Test
+    public void testFinishedJobsAreReplayedAtThePromptAndDroppedWithTheSession() throws Exception {
+        Files.write(new File(testDir, "file1.txt").toPath(), "first\n".getBytes(StandardCharsets.UTF_8));
+        CountDownLatch started = new CountDownLatch(1);
+        CLI.COMMANDS.register("block", (session, parts, in, out, err) -> {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(captured), System.err);
+
+        CLI.execute(session, "cat file1.txt &");
+        Jobs.Job job = session.jobs().latest();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.state() != Jobs.State.DONE && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        session.jobs().reportFinished(session.out());
+        assertTrue(captured.toString().endsWith("[1] Done     cat file1.txt" + NL + "first\n"));
+        assertTrue(session.jobs().list().isEmpty(), "A replayed job must not be kept.");
+
+        CLI.execute(session, "block &");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        session.jobs().killAll();
+        assertTrue(session.jobs().list().isEmpty(), "Ending the session must drop every job.");
+    }
+
+    @Test
+    public void testExternalProgramsStreamThroughPipes() throws IOException {
+        Files.write(new File(testDir, "file1.txt").toPath(), "hello external\n".getBytes(StandardCharsets.UTF_8));
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), System.out, System.err);
+
+        CLI.execute(session, "cat file1.txt | tr a-z A-Z | tr -d X | cat > out.txt");
+        CLI.execute(session, "tr A-Z a-z < out.txt >> out.txt");
+
+        assertEquals("HELLO ETERNAL\nhello eternal\n",
+                Files.readString(new File(testDir, "out.txt").toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testExternalProgramErrorsGoToSessionStream() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(out),
+                new PrintStream(err));
+
+        CLI.execute(session, "sh -c 'pwd; echo oops >&2'");
+        CLI.execute(session, "no-such-program-here");
+
+        assertEquals(testDir.getAbsolutePath() + "\n", out.toString());
+        assertEquals("oops\nUnknown command: no-such-program-here" + System.lineSeparator(), err.toString());
+    }
+
+    @Test
+    public void testErrorRedirectionIsScopedToOneCommand() throws IOException {
+        Files.write(new File(testDir, "file1.txt").toPath(), "data\n".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), System.out, new PrintStream(err));
+        String nl = System.lineSeparator();
+
+        CLI.execute(session, "cat missing.txt 2> errors.txt");
+        CLI.execute(session, "cat gone.txt 2>> errors.txt");
+        CLI.execute(session, "cat file1.txt missing.txt > all.txt 2>&1");
+        CLI.execute(session, "sh -c 'echo out; echo err >&2' >> all.txt 2>&1");
+        CLI.execute(session, "cat missing.txt");
+
+        assertEquals("cat: No such file or directory (file: missing.txt)" + nl
+                + "cat: No such file or directory (file: gone.txt)" + nl, Files.readString(testDir.toPath().resolve("errors.txt")));
+        assertEquals("data\ncat: No such file or directory (file: missing.txt)" + nl + "out\nerr\n",
+                Files.readString(testDir.toPath().resolve("all.txt")));
+        assertEquals("cat: No such file or directory (file: missing.txt)" + nl, err.toString(),
+                "Redirections must not outlive their command.");
+    }
+
+    @Test
+    public void testErrorsFollowStdoutAsOfTheirRedirection() throws IOException {
+        Path dir = testDir.toPath();
+
+        Output output = run("sh -c 'echo out; echo err >&2' 2>&1 > out1.txt");
+        assertEquals("err\n", output.out());
+        assertEquals("out\n", Files.readString(dir.resolve("out1.txt")));
+
+        assertEquals("", run("sh -c 'echo out; echo err >&2' > err2.txt 2>&1 > out2.txt").out());
+        assertEquals("err\n", Files.readString(dir.resolve("err2.txt")));
+        assertEquals("out\n", Files.readString(dir.resolve("out2.txt")));
+
+        assertEquals("OUT\nERR\n", run("sh -c 'echo out; sleep 0.1; echo err >&2' 2>&1 | tr a-z A-Z").out());
+
+        output = run("cat missing.txt 2>&1 > out3.txt");
+        assertEquals("cat: No such file or directory (file: missing.txt)" + NL, output.out());
+        assertEquals("", Files.readString(dir.resolve("out3.txt")));
+        assertEquals("", output.err());
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        CommandMetrics.Histogram histogram = new CommandMetrics.Histogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(1_000_000, histogram.max());
+        // Buckets are at most 12.5% wide
+        assertEquals(500_000, histogram.percentile(0.50), 500_000 * 0.125);
+        assertEquals(990_000, histogram.percentile(0.99), 990_000 * 0.125);
+        for (long value : new long[]{0, 7, 8, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int index = CommandMetrics.Histogram.index(value);
+            assertTrue(CommandMetrics.Histogram.upperBound(index) >= value);
+            assertTrue(index == 0 || CommandMetrics.Histogram.upperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void testTimeAndStatsReportCommands() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(out),
+                new PrintStream(err));
+
+        CLI.execute(session, "time pwd");
+        CLI.execute(session, "stats");
+        CLI.execute(session, "stats --prometheus metrics.prom");
+
+        assertTrue(out.toString().startsWith(testDir.getAbsolutePath() + System.lineSeparator()));
+        assertTrue(err.toString().contains("real "));
+        assertTrue(err.toString().contains("allocated "));
+        assertTrue(out.toString().contains("p99 ms"));
+        String exported = Files.readString(testDir.toPath().resolve("metrics.prom"));
+        assertTrue(exported.contains("# TYPE cli_command_duration_seconds summary"));
+        assertTrue(exported.contains("cli_command_duration_seconds_count{command=\"pwd\"}"));
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        Files.write(new File(testDir, "file1.txt").toPath(), "data\n".getBytes(StandardCharsets.UTF_8));
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), System.out, System.err);
+        Path dump = new File(testDir, "events.jfr").toPath();
+
+        try (Recording recording = new Recording()) {
+            for (String event : new String[]{"org.os.Command", "org.os.PipeStage", "org.os.RedirectWrite", "org.os.FileTransfer"}) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            CLI.execute(session, "cat file1.txt | cat > out.txt");
+            CLI.execute(session, "mv out.txt moved.txt");
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("org.os.Command")
+                && e.getString("command").equals("mv") && e.getString("arguments").equals("out.txt moved.txt")));
+        assertEquals(2, events.stream().filter(e -> e.getEventType().getName().equals("org.os.PipeStage")).count());
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("org.os.RedirectWrite")
+                && e.getString("path").endsWith("out.txt") && e.getLong("bytes") == 5));
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("org.os.FileTransfer")
+                && e.getString("operation").equals("move") && e.getString("strategy").equals("RENAME")));
+    }
+
+    @Test
+    public void testGrepSearchesFilesDirectoriesAndPipes() throws IOException {
+        // Above the mapping threshold, so the large file goes through the mapped chunk scan
+        StringBuilder log = new StringBuilder();
+        int errors = 0;
+        for (int i = 1; log.length() <= Grep.MAP_THRESHOLD; i++) {
+            if (i % 1000 == 0) {
+                log.append("ERROR at ").append(i).append('\n');
+                errors++;
+            } else {
+                log.append("ok ").append(i).append('\n');
+            }
+        }
+        Files.writeString(new File(testDir, "directory1/big.log").toPath(), log);
+        Files.writeString(new File(testDir, "file1.txt").toPath(), "Hello\nworld\nhello again\n");
+
+        Output output = run(new ByteArrayInputStream("a1\nb2\na3".getBytes()),
+                "grep -in hello file1.txt",
+                "grep -n 'ERROR at 2000$' directory1/big.log",
+                "grep -rc ERROR directory1",
+                "grep -r again",
+                "cat | grep a.",
+                "grep x missing.txt");
+
+        assertEquals("1:Hello\n3:hello again\n2000:ERROR at 2000\n"
+                + "directory1/big.log:" + errors + "\n"
+                + "file1.txt:hello again\na1\na3\n", output.out());
+        assertEquals("grep: missing.txt: No such file or directory" + NL, output.err());
+    }
+
+    @Test
+    public void testGrepMatchesCharactersNotBytesOnNonAsciiLines() throws IOException {
+        Files.writeString(new File(testDir, "file1.txt").toPath(), "é\naéb\nab\nx\n", StandardCharsets.UTF_8);
+
+        Output output = run("grep ^.$ file1.txt", "grep a.b file1.txt", "grep -c '^\\W$' file1.txt");
+
+        assertEquals("é\nx\naéb\n1\n", output.out());
+        assertEquals("", output.err());
+    }
+
+    @Test
+    public void testHeadAndTail() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 100_000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        Path log = testDir.toPath().resolve("file1.txt");
+        Files.writeString(log, text);
+
+        Output output = run("head -n 2 file1.txt", "tail -2 file1.txt", "cat file1.txt | tail -n 1",
+                "cat file1.txt | head -n 1", "grep line file1.txt | head -n 1");
+
+        assertEquals("line 1\nline 2\nline 99999\nline 100000\nline 100000\nline 1\nline 1\n", output.out());
+        assertEquals("", output.err(), "A stage whose reader stopped should end quietly.");
+
+        // tail -f picks up appended lines until its thread is interrupted
+        ByteArrayOutputStream followed = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), InputStream.nullInputStream(), new PrintStream(followed, true),
+                System.err);
+        Thread follower = new Thread(() -> CLI.execute(session, "tail -n 1 -f file1.txt"));
+        follower.start();
+        for (int i = 0; i < 100 && followed.size() == 0; i++) {
+            Thread.sleep(50);
+        }
+        Files.writeString(log, "appended\n", StandardOpenOption.APPEND);
+        for (int i = 0; i < 100 && !followed.toString().contains("appended"); i++) {
+            Thread.sleep(50);
+        }
+        follower.interrupt();
+        follower.join(5000);
+
+        assertFalse(follower.isAlive());
+        assertEquals("line 100000\nappended\n", followed.toString());
+    }
+
+    @Test
+    public void testSortAndUniq() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("host").append(i % 7).append(' ').append(i * 7919 % 5000).append('\n');
+        }
+        Files.writeString(testDir.toPath().resolve("file1.txt"), text);
+        Files.writeString(testDir.toPath().resolve("file2.txt"), "b\na\nb\nb\n");
+
+        // A 16 KB budget forces many spilled runs
+        Output output = run("sort -S 16K -n -r -k 2 file1.txt | head -n 3", "sort -S 16K -k1,1 file1.txt > sorted.txt",
+                "sort file2.txt | uniq -c");
+
+        assertEquals("", output.err());
+        String[] lines = output.out().split(NL);
+        assertEquals(5, lines.length);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lines[i].endsWith(" " + (4999 - i)), lines[i]);
+        }
+        assertEquals("      1 a", lines[3]);
+        assertEquals("      3 b", lines[4]);
+        List<String> sorted = Files.readAllLines(testDir.toPath().resolve("sorted.txt"));
+        List<String> expected = new ArrayList<>(List.of(text.toString().split("\n")));
+        expected.sort(Comparator.comparing((String line) -> line.split(" ")[0]).thenComparing(Comparator.naturalOrder()));
+        assertEquals(expected, sorted);
+
+        output = run("sort missing.txt file2.txt");
+        assertEquals("sort: missing.txt: No such file or directory" + NL, output.err());
+        assertEquals("a" + NL + "b" + NL + "b" + NL + "b" + NL, output.out(),
+                "The readable files must still be sorted.");
+    }
+
+    @Test
+    public void testSortMergesMoreRunsThanItsFanIn() throws IOException {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 30000; i++) {
+            values.add(Integer.toString(i * 7919 % 30000));
+        }
+        List<String> merged = new ArrayList<>();
+        try (ExternalSort sort = new ExternalSort(Comparator.naturalOrder(), 16 * 1024)) {
+            for (String value : values) {
+                sort.add(value);
+            }
+            assertTrue(sort.spilledRuns() > 2 * ExternalSort.MERGE_FAN_IN, "runs: " + sort.spilledRuns());
+            sort.forEachSorted(merged::add);
+        }
+        values.sort(Comparator.naturalOrder());
+        assertEquals(values, merged);
+
+        Files.writeString(testDir.toPath().resolve("file1.txt"), String.join("\n", values) + "\n");
+        Output output = run("sort -n -S 16K file1.txt | tail -n 2");
+        assertEquals("", output.err());
+        assertEquals("29998" + NL + "29999" + NL, output.out());
+    }
+
+    @Test
+    public void testWordCount() throws IOException {
+        // Every byte value, so bytes such as 0x8A that differ from '\n' only in the high bit are covered
+        byte[] random = new byte[4099];
+        new java.util.Random(42).nextBytes(random);
+        long newlines = 0;
+        for (byte b : random) {
+            newlines += b == '\n' ? 1 : 0;
+        }
+        assertEquals(newlines, WordCount.countNewlines(ByteBuffer.wrap(random), random.length));
+
+        // Large enough to be mapped
+        StringBuilder text = new StringBuilder();
+        int lines = 0;
+        while (text.length() <= WordCount.MAP_THRESHOLD) {
+            text.append("alpha  beta\tgamma\n");
+            lines++;
+        }
+        Files.writeString(testDir.toPath().resolve("file1.txt"), text);
+        Files.writeString(testDir.toPath().resolve("file2.txt"), "one two");
+
+        Output output = run("wc file1.txt file2.txt", "cat file1.txt | wc -l", "wc -c missing.txt");
+
+        String total = String.valueOf(text.length() + 7);
+        String column = "%" + total.length() + "d";
+        assertEquals(String.format(column + " " + column + " " + column + " file1.txt" + NL, lines, 3 * lines, text.length())
+                + String.format(column + " " + column + " " + column + " file2.txt" + NL, 0, 2, 7)
+                + String.format(column + " " + column + " " + column + " total" + NL, lines, 3 * lines + 2, text.length() + 7)
+                + String.format("%7d", lines) + NL, output.out());
+        assertEquals("wc: missing.txt: No such file or directory" + NL, output.err());
+    }
+
+    @Test
+    public void testFindAndDu() throws IOException {
+        Files.writeString(testDir.toPath().resolve("directory1/notes.txt"), "x".repeat(3000));
+        Files.writeString(testDir.toPath().resolve("directory1/data.bin"), "x".repeat(100));
+
+        assertEquals("./directory1/notes.txt" + NL + "./file1.txt" + NL + "./file2.txt" + NL,
+                run("find . -name \"*.txt\" -type f").out());
+        assertEquals("directory1/notes.txt" + NL, run("find directory1 -type f -size +1k").out());
+
+        // Directory sizes themselves vary between file systems, so only the order and names are fixed
+        Output output = run("du directory1 missing");
+        assertTrue(output.out().matches("\\d+\tdirectory1" + NL), output.out());
+        assertEquals("du: missing: No such file or directory" + NL, output.err());
+    }
+
+    @Test
+    public void testWalkerVisitsTreesWiderThanItsLookahead() throws IOException {
+        Path root = testDir.toPath().resolve("wide");
+        List<String> expected = new ArrayList<>(List.of(""));
+        for (int i = 0; i < DirectoryWalker.LISTINGS_AHEAD + 20; i++) {
+            String name = String.format("d%04d", i);
+            Files.createDirectories(root.resolve(name + "/sub"));
+            Files.writeString(root.resolve(name + "/sub/f.txt"), "x");
+            expected.addAll(List.of(name, name + "/sub", name + "/sub/f.txt"));
+        }
+        List<String> visited = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        try {
+            DirectoryWalker.walk(root, "test", System.err, new DirectoryWalker.Visitor() {
+                @Override
+                public void visit(DirectoryWalker.Entry entry) {
+                    visited.add(root.relativize(entry.path()).toString().replace('\\', '/'));
+                }
+
+                @Override
+                public void leave(DirectoryWalker.Entry directory) {
+                    left.add(root.relativize(directory.path()).toString());
+                }
+            });
+            assertEquals(expected, visited);
+            assertEquals(2 * (DirectoryWalker.LISTINGS_AHEAD + 20) + 1, left.size());
+        } finally {
+            run("rm -r wide");
+        }
+    }
+
+    @Test
+    public void testRecursiveRemove() throws IOException {
+        Path directory = testDir.toPath().resolve("directory1");
+        Files.createDirectories(directory.resolve("sub/deeper"));
+        Files.writeString(directory.resolve("sub/deeper/a.txt"), "abc");
+        Files.writeString(directory.resolve("b.txt"), "de");
+        Files.createDirectories(testDir.toPath().resolve("p/q"));
+
+        Output refused = run("rm directory1");
+        assertTrue(Files.exists(directory), "rm without -r must leave a directory alone.");
+        assertEquals("rm: cannot remove 'directory1': Is a directory" + NL, refused.err());
+        Output output = run("rm -rf directory1 missing", "rmdir -p p/q");
+
+        assertFalse(Files.exists(directory));
+        assertFalse(Files.exists(testDir.toPath().resolve("p")));
+        assertEquals("Removed directory1: 2 files, 3 directories, 5 freed" + NL
+                + "Directory removed: p/q" + NL + "Directory removed: p" + NL, output.out());
+        assertEquals("", output.err());
+    }
+
+    @Test
+    public void testRecursiveCopy() throws IOException {
+        Path directory = testDir.toPath().resolve("directory1");
+        Files.createDirectories(directory.resolve("sub/deeper"));
+        Files.writeString(directory.resolve("sub/deeper/a.txt"), "abc");
+        Files.writeString(directory.resolve("b.txt"), "de");
+
+        assertEquals("cp: -r not specified; omitting directory 'directory1'" + NL
+                + "cp: cannot copy a directory, 'directory1', into itself" + NL,
+                run("cp directory1 copy", "cp -r directory1 directory1/sub").err());
+
+        Output output = run("cp -r -j 2 directory1 copy");
+        Path copy = testDir.toPath().resolve("copy");
+        try {
+            assertEquals("abc", Files.readString(copy.resolve("sub/deeper/a.txt")));
+            assertEquals("de", Files.readString(copy.resolve("b.txt")));
+            assertTrue(output.out().startsWith("cp: 2 files, 3 directories, 0.0 MB copied in "), output.out());
+        } finally {
+            run("rm -r copy directory1/sub");
+        }
+    }
+
+    @Test
+    public void testCopyFollowsLinkOperandsOnlyWithoutRecursion() throws IOException {
+        Path file = testDir.toPath().resolve("file1.txt");
+        Files.writeString(file, "abc");
+        Path link = Files.createSymbolicLink(testDir.toPath().resolve("link"), file.getFileName());
+
+        Output output = run("cp link copy.txt", "cp -r link linkcopy");
+
+        assertEquals("", output.err());
+        Path copy = testDir.toPath().resolve("copy.txt");
+        assertFalse(Files.isSymbolicLink(copy), "cp without -r must copy what a link points to.");
+        assertEquals("abc", Files.readString(copy));
+        assertTrue(Files.isSymbolicLink(testDir.toPath().resolve("linkcopy")), "cp -r keeps links as links.");
+        assertEquals("abc", Files.readString(link));
+    }
+
+    // What a run of commands wrote
+    private record Output(String out, String err) {
+    }
+
+    private Output run(String... commands) {
+        return run(InputStream.nullInputStream(), commands);
+    }
+
+    // Runs the commands one after another in a fresh session in testDir
+    private Output run(InputStream in, String... commands) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Session session = new Session(testDir.toPath(), in, new PrintStream(out), new PrintStream(err));
+        for (String command : commands) {
+            CLI.execute(session, command);
+        }
+        return new Output(out.toString(StandardCharsets.UTF_8), err.toString(StandardCharsets.UTF_8));
+    }
+}
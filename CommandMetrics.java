@@ -0,0 +1,165 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms per command name, fed by the dispatcher for every command that runs. Recording is
+ * two atomic adds and a map lookup, cheap enough to stay on. The {@code stats} builtin prints
+ * p50/p99 and counts and can export them in Prometheus text format.
+ *
+ * <p>Buckets are log-linear: each power of two is split into {@value #SUB_BUCKETS} equal parts, so a
+ * reported percentile is at most 12.5% above the true value, whatever the magnitude.
+ */
+final class CommandMetrics {
+
+    static final CommandMetrics INSTANCE = new CommandMetrics();
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Program names come from user input; beyond this many distinct names they share one histogram
+    private static final int MAX_COMMANDS = 256;
+    private static final String OTHER = "other";
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    void record(String command, long nanos) {
+        Histogram histogram = histograms.get(command);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(histograms.size() < MAX_COMMANDS ? command : OTHER,
+                    name -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    void printStats(PrintStream out) {
+        Map<String, Histogram> sorted = new TreeMap<>(histograms);
+        if (sorted.isEmpty()) {
+            out.println("commands: none run yet");
+            return;
+        }
+        out.printf("%-12s %10s %12s %12s %12s%n", "command", "count", "p50 ms", "p99 ms", "max ms");
+        sorted.forEach((name, histogram) -> out.printf(Locale.ROOT, "%-12s %10d %12.3f %12.3f %12.3f%n", name,
+                histogram.count(), histogram.percentile(0.50) / 1e6, histogram.percentile(0.99) / 1e6,
+                histogram.max() / 1e6));
+    }
+
+    /**
+     * Writes the histograms as a Prometheus summary. The file is replaced atomically, so a scraper such
+     * as the node exporter's textfile collector never reads half of it.
+     */
+    void exportPrometheus(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), ".cli-metrics", ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write("# HELP cli_command_duration_seconds Time to run one command, by command name.\n");
+                writer.write("# TYPE cli_command_duration_seconds summary\n");
+                for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+                    String label = "command=\"" + escape(entry.getKey()) + "\"";
+                    Histogram histogram = entry.getValue();
+                    for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+                        writer.write(String.format(Locale.ROOT, "cli_command_duration_seconds{%s,quantile=\"%s\"} %.9f%n",
+                                label, quantile, histogram.percentile(quantile) / 1e9));
+                    }
+                    writer.write(String.format(Locale.ROOT, "cli_command_duration_seconds_sum{%s} %.9f%n",
+                            label, histogram.sum() / 1e9));
+                    writer.write(String.format(Locale.ROOT, "cli_command_duration_seconds_count{%s} %d%n",
+                            label, histogram.count()));
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    void reset() {
+        histograms.clear();
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private volatile long max;
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets.incrementAndGet(index(value));
+            sum.add(value);
+            if (value > max) {
+                synchronized (this) {
+                    max = Math.max(max, value);
+                }
+            }
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max;
+        }
+
+        /** @return the upper bound of the bucket holding the {@code quantile}, capped at the maximum seen */
+        long percentile(double quantile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        // Values below SUB_BUCKETS get a bucket each; above, the top SUB_BUCKET_BITS bits after the
+        // leading one pick the sub-bucket within the value's power of two
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (1L << exponent) + (sub + 1) * width - 1;
+        }
+    }
+}
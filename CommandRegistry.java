@@ -0,0 +1,42 @@
+package org.os;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves command names to {@link Command}s. The builtins are registered by {@link CLI}; plugins on
+ * the class path add their own commands by implementing {@link Plugin} and listing the class in
+ * {@code META-INF/services/org.os.CommandRegistry$Plugin}.
+ */
+public final class CommandRegistry {
+
+    /** Contributes commands to the registry when the interpreter starts. */
+    public interface Plugin {
+
+        void register(CommandRegistry registry);
+    }
+
+    private final Map<String, Command> commands = new ConcurrentHashMap<>();
+
+    public void register(String name, Command command) {
+        commands.put(name, command);
+    }
+
+    /** @return the command, or null when no command has that name */
+    public Command lookup(String name) {
+        return commands.get(name);
+    }
+
+    public Set<String> names() {
+        return Collections.unmodifiableSet(commands.keySet());
+    }
+
+    void loadPlugins(ClassLoader loader) {
+        for (Plugin plugin : ServiceLoader.load(Plugin.class, loader)) {
+            plugin.register(this);
+        }
+    }
+}
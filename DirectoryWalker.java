@@ -0,0 +1,200 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Walks a directory tree on the fork-join pool: every directory is listed by its own task, so the
+ * pool's workers read many directories at once and a tree with millions of entries is read on every
+ * core. The caller still sees entries in a fixed order (depth first, names sorted), and sees them as
+ * soon as the listings before them are done, so output streams while the rest of the tree is being read.
+ *
+ * <p>Listings are started in the order the caller will reach them, and at most {@link #LISTINGS_AHEAD}
+ * run or wait ahead of it, so a slow consumer holds a bounded number of listings in memory rather than
+ * the whole tree. Set the bound with {@code -Dcli.walk.ahead=<listings>}.
+ *
+ * <p>Attributes are read once per entry, without following symbolic links; links are reported but
+ * never followed.
+ */
+final class DirectoryWalker {
+
+    static final int LISTINGS_AHEAD = Math.max(1, Integer.getInteger("cli.walk.ahead", 256));
+
+    record Entry(Path path, BasicFileAttributes attributes, int depth) {
+
+        boolean isDirectory() {
+            return attributes.isDirectory();
+        }
+    }
+
+    /** Receives entries in walk order; every directory is entered before and left after its contents. */
+    interface Visitor {
+        void visit(Entry entry) throws IOException;
+
+        default void leave(Entry directory) throws IOException {
+        }
+    }
+
+    private final String command;
+    private final PrintStream err;
+    // Set once the caller stops, so listings still queued do not read the rest of the tree
+    private volatile boolean stopped;
+    // Listings not started yet, in the order the caller will reach them; only the caller's thread uses
+    // these and the count of listings started but not yet reached
+    private final ArrayDeque<Listing> waiting = new ArrayDeque<>();
+    private int ahead;
+
+    private DirectoryWalker(String command, PrintStream err) {
+        this.command = command;
+        this.err = err;
+    }
+
+    /**
+     * Hands {@code root} and everything below it to {@code visitor}; unreadable directories are reported
+     * on {@code err} as "{@code command}: path: reason" and skipped.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted, e.g. because the command was
+     *                                killed or its reader went away
+     */
+    static void walk(Path root, String command, PrintStream err, Visitor visitor) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        Entry top = new Entry(root, attributes, 0);
+        visitor.visit(top);
+        if (!attributes.isDirectory()) {
+            return;
+        }
+        DirectoryWalker walker = new DirectoryWalker(command, err);
+        try {
+            walker.visitTree(top, visitor);
+        } finally {
+            walker.stopped = true;
+        }
+    }
+
+    /** @return {@code root} and everything below it, in walk order */
+    static List<Entry> walk(Path root, String command, PrintStream err) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        walk(root, command, err, entries::add);
+        return entries;
+    }
+
+    // Depth first with an explicit stack, as trees can be deeper than the thread stack allows
+    private void visitTree(Entry top, Visitor visitor) throws IOException {
+        ArrayDeque<Entry> directories = new ArrayDeque<>();
+        ArrayDeque<Iterator<Node>> pending = new ArrayDeque<>();
+        directories.push(top);
+        pending.push(reach(new Listing(top)).iterator());
+        while (!pending.isEmpty()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException(command + " interrupted");
+            }
+            Iterator<Node> children = pending.peek();
+            if (!children.hasNext()) {
+                pending.pop();
+                visitor.leave(directories.pop());
+                continue;
+            }
+            Node child = children.next();
+            visitor.visit(child.entry);
+            if (child.listing != null) {
+                directories.push(child.entry);
+                pending.push(reach(child.listing).iterator());
+            }
+        }
+    }
+
+    // Waits for the listing the caller has reached, queues its subdirectories ahead of every listing
+    // waiting already, as the caller reaches them first, and starts as many waiting ones as the bound allows
+    private List<Node> reach(Listing listing) {
+        if (listing.started) {
+            ahead--;
+        } else {
+            waiting.remove(listing);
+            listing.fork();
+        }
+        List<Node> children = listing.join();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            if (children.get(i).listing != null) {
+                waiting.addFirst(children.get(i).listing);
+            }
+        }
+        while (ahead < LISTINGS_AHEAD && !waiting.isEmpty()) {
+            Listing next = waiting.pollFirst();
+            next.started = true;
+            next.fork();
+            ahead++;
+        }
+        return children;
+    }
+
+    // An entry and, for a directory, the task listing it
+    private record Node(Entry entry, Listing listing) {
+    }
+
+    @SuppressWarnings("serial")
+    private final class Listing extends RecursiveTask<List<Node>> {
+        private final Entry directory;
+        private boolean started;
+
+        Listing(Entry directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<Node> compute() {
+            if (stopped) {
+                return List.of();
+            }
+            List<Entry> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.path())) {
+                for (Path child : stream) {
+                    try {
+                        children.add(new Entry(child, Files.readAttributes(child, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS), directory.depth() + 1));
+                    } catch (IOException e) {
+                        // Deleted while we were listing
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                err.println(command + ": " + directory.path() + ": " + describe(e));
+                return List.of();
+            }
+            children.sort(Comparator.comparing(entry -> entry.path().getFileName().toString()));
+
+            List<Node> nodes = new ArrayList<>(children.size());
+            for (Entry child : children) {
+                nodes.add(new Node(child, child.isDirectory() ? new Listing(child) : null));
+            }
+            return nodes;
+        }
+    }
+
+    static String describe(Exception e) {
+        Throwable cause = e instanceof DirectoryIteratorException || e instanceof UncheckedIOException
+                ? e.getCause() : e;
+        if (cause instanceof java.nio.file.AccessDeniedException) {
+            return "Permission denied";
+        }
+        if (cause instanceof java.nio.file.NoSuchFileException) {
+            return "No such file or directory";
+        }
+        if (cause instanceof java.nio.file.DirectoryNotEmptyException) {
+            return "Directory not empty";
+        }
+        return cause.getMessage();
+    }
+}
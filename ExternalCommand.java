@@ -0,0 +1,245 @@
+package org.os;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs programs that are not builtins. A name containing '/' is a path relative to the session
+ * directory; any other name is looked up in the session's {@code PATH}.
+ *
+ * <p>Adjacent external stages of a pipe are started together with {@link ProcessBuilder#startPipeline},
+ * so their bytes flow through OS pipes and never enter the JVM. At the edges, file redirections and the
+ * real terminal are handed to the processes directly; only a neighbouring builtin stage or a captured
+ * stream needs a pump thread copying between the process and the JVM.
+ */
+final class ExternalCommand {
+
+    private static final int PUMP_BUFFER_SIZE = 64 * 1024;
+
+    // The process's own stdout/stderr while the interactive console runs; null otherwise
+    private static volatile PrintStream terminalOut;
+    private static volatile PrintStream terminalErr;
+
+    private ExternalCommand() {
+    }
+
+    /** Lets programs whose output goes to {@code out} / {@code err} inherit the process's descriptors. */
+    static void useTerminal(PrintStream out, PrintStream err) {
+        terminalOut = out;
+        terminalErr = err;
+    }
+
+    /** @return the executable {@code name} refers to, or null if there is none */
+    static Path find(Session session, String name) {
+        if (name.isEmpty()) {
+            return null;
+        }
+        if (name.indexOf('/') >= 0) {
+            Path candidate = session.resolve(name);
+            return isExecutable(candidate) ? candidate : null;
+        }
+        String path = session.environment().get("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            Path candidate = session.resolve(dir.isEmpty() ? "." : dir).resolve(name);
+            if (isExecutable(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isExecutable(Path candidate) {
+        return Files.isRegularFile(candidate) && Files.isExecutable(candidate);
+    }
+
+    /**
+     * Runs {@code stages}, all external, as one OS-level pipeline and waits for every process.
+     *
+     * @param piped whether {@code in} comes from a previous stage rather than the session
+     */
+    static void run(Session session, List<Parser.SimpleCommand> stages, boolean piped, InputStream in,
+                    PrintStream out, PrintStream err) {
+        List<ProcessBuilder> builders = new ArrayList<>(stages.size());
+        boolean inputRedirected = false;
+        boolean outputRedirected = false;
+        List<Path> created = new ArrayList<>(0);
+        // Stages whose stderr goes where their stdout went before a later "> file", i.e. to our output
+        List<ProcessBuilder> errorsToOutput = new ArrayList<>(0);
+        for (Parser.SimpleCommand stage : stages) {
+            Path executable = find(session, stage.name());
+            if (executable == null) {
+                err.println((piped ? "Unknown command for piped input: " : "Unknown command: ") + stage.name());
+                return;
+            }
+            List<String> argv = new ArrayList<>(List.of(stage.argv()));
+            argv.set(0, executable.toString());
+            ProcessBuilder builder = new ProcessBuilder(argv).directory(session.cwd().toFile());
+            builder.environment().clear();
+            builder.environment().putAll(session.environment());
+
+            // As in a shell, redirections apply left to right: "2>&1" sends stderr wherever stdout points
+            // at that moment, so a later "> file" moves stdout alone. Null stands for the stage's own
+            // stdout, i.e. the next stage or our output.
+            boolean merged = false;
+            ProcessBuilder.Redirect mergedInto = null;
+            for (Parser.Redirect redirect : stage.redirects()) {
+                if (redirect.fd() == 0) {
+                    builder.redirectInput(session.resolve(redirect.target()).toFile());
+                    inputRedirected = true;
+                } else if (redirect.fd() == 1) {
+                    File target = session.resolve(redirect.target()).toFile();
+                    builder.redirectOutput(redirect.type() == Parser.RedirectType.APPEND
+                            ? ProcessBuilder.Redirect.appendTo(target) : ProcessBuilder.Redirect.to(target));
+                    created.add(target.toPath());
+                    outputRedirected = true;
+                } else if (redirect.type() == Parser.RedirectType.MERGE_ERRORS) {
+                    merged = true;
+                    mergedInto = builder.redirectOutput() == ProcessBuilder.Redirect.PIPE ? null : builder.redirectOutput();
+                } else {
+                    File target = session.resolve(redirect.target()).toFile();
+                    builder.redirectError(redirect.type() == Parser.RedirectType.APPEND
+                            ? ProcessBuilder.Redirect.appendTo(target) : ProcessBuilder.Redirect.to(target));
+                    created.add(target.toPath());
+                    merged = false;
+                }
+            }
+            if (merged) {
+                ProcessBuilder.Redirect stdout = builder.redirectOutput();
+                if (mergedInto == (stdout == ProcessBuilder.Redirect.PIPE ? null : stdout)) {
+                    // One stream, so output and errors share a file offset as dup2 would
+                    builder.redirectErrorStream(true);
+                } else if (mergedInto != null) {
+                    builder.redirectError(mergedInto);
+                } else {
+                    // Only the last stage can send stdout to a file, so its own stdout was our output
+                    errorsToOutput.add(builder);
+                }
+            }
+            builders.add(builder);
+        }
+
+        ProcessBuilder first = builders.get(0);
+        ProcessBuilder last = builders.get(builders.size() - 1);
+        // Only the first stage's input and the last stage's output can have been redirected
+        boolean pumpInput = !inputRedirected && (piped || in != System.in);
+        if (!inputRedirected && !pumpInput) {
+            first.redirectInput(ProcessBuilder.Redirect.INHERIT);
+        }
+        boolean pumpOutput = !outputRedirected && (out != terminalOut || terminalOut == null);
+        if (!outputRedirected && !pumpOutput) {
+            out.flush();
+            last.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        }
+        boolean inheritErrors = err == terminalErr && terminalErr != null;
+        for (ProcessBuilder builder : builders) {
+            if (inheritErrors && errorsUnredirected(builder) && !errorsToOutput.contains(builder)) {
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            }
+        }
+
+        List<Process> processes;
+        try {
+            processes = builders.size() == 1 ? List.of(first.start()) : ProcessBuilder.startPipeline(builders);
+        } catch (IOException e) {
+            err.println(stages.get(0).name() + ": " + e.getMessage());
+            return;
+        } finally {
+            // Redirection targets are created as the processes start; other changes they make reach
+            // the ls cache through its watcher
+            created.forEach(CLI::changed);
+        }
+
+        List<Thread> errorPumps = new ArrayList<>(0);
+        try {
+            if (pumpInput) {
+                Process head = processes.get(0);
+                if (!piped && in == session.in()) {
+                    // A remote session's input is the command stream itself; a pump would swallow the next lines
+                    closeQuietly(head.getOutputStream());
+                } else {
+                    Threads.start("pump-stdin-" + head.pid(), () -> pumpInput(in, head.getOutputStream()));
+                }
+            }
+            for (int i = 0; i < processes.size(); i++) {
+                if (errorsUnredirected(builders.get(i))) {
+                    Process process = processes.get(i);
+                    PrintStream errors = errorsToOutput.contains(builders.get(i)) ? out : err;
+                    errorPumps.add(Threads.start("pump-stderr-" + process.pid(),
+                            () -> pump(process.getErrorStream(), errors, null)));
+                }
+            }
+            if (pumpOutput) {
+                pump(processes.get(processes.size() - 1).getInputStream(), out, processes);
+            }
+            // startPipeline leaves the parent holding the read end of every inner pipe, so a producer
+            // whose consumer has exited never gets SIGPIPE; stop it as that signal would have
+            for (int i = processes.size() - 1; i >= 0; i--) {
+                processes.get(i).waitFor();
+                if (i > 0) {
+                    processes.get(i - 1).destroy();
+                }
+            }
+            // So that error output is complete before the next command runs
+            for (Thread pump : errorPumps) {
+                pump.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Only does something when interrupted or the reader went away
+            processes.forEach(Process::destroyForcibly);
+        }
+    }
+
+    // True while the process's stderr still comes back to us through a pipe
+    private static boolean errorsUnredirected(ProcessBuilder builder) {
+        return !builder.redirectErrorStream() && builder.redirectError() == ProcessBuilder.Redirect.PIPE;
+    }
+
+    private static void pumpInput(InputStream in, OutputStream stdin) {
+        try (stdin) {
+            in.transferTo(stdin);
+        } catch (IOException e) {
+            // The process exited or closed its input
+        }
+    }
+
+    /**
+     * Copies {@code from} to {@code to}. PrintStream swallows write errors, so a closed downstream pipe
+     * shows up only in {@code checkError}; the processes are then stopped as a shell's SIGPIPE would.
+     */
+    private static void pump(InputStream from, PrintStream to, List<Process> producers) {
+        byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+        try (from) {
+            int read;
+            while ((read = from.read(buffer)) != -1) {
+                to.write(buffer, 0, read);
+                if (to.checkError()) {
+                    if (producers != null) {
+                        producers.forEach(Process::destroy);
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The process was destroyed
+        }
+    }
+
+    private static void closeQuietly(OutputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.os;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Sorts strings in memory until their estimated size passes a budget, then spills sorted runs to
+ * temporary files and merges them, so the heap used stays bounded whatever the input size.
+ *
+ * <p>Runs are sorted with {@link Arrays#parallelSort} and written on the fork-join pool while the next
+ * one fills, so half the budget collects input while the other half is being spilled. The last run is
+ * never written: it is sorted in memory and merged with the spilled ones.
+ *
+ * <p>At most {@link #MERGE_FAN_IN} runs are open at once: with more, groups of that many are merged into
+ * longer runs first, pass after pass, so neither file descriptors nor read buffers grow with the input.
+ *
+ * <p>The default budget is set with {@code -Dcli.sort.memory=<bytes>} and the fan-in with
+ * {@code -Dcli.sort.fanIn=<runs>}.
+ */
+final class ExternalSort implements Closeable {
+
+    static final long DEFAULT_MEMORY = Long.getLong("cli.sort.memory", 64L * 1024 * 1024);
+    static final int MERGE_FAN_IN = Math.max(2, Integer.getInteger("cli.sort.fanIn", 64));
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+
+    private final Comparator<String> order;
+    private final long memoryBudget;
+    private List<String> buffer = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private long bufferedBytes;
+    // The run being sorted and written in the background, if any
+    private ForkJoinTask<Path> spilling;
+
+    ExternalSort(Comparator<String> order) {
+        this(order, DEFAULT_MEMORY);
+    }
+
+    ExternalSort(Comparator<String> order, long memoryBudget) {
+        this.order = order;
+        this.memoryBudget = memoryBudget;
+    }
+
+    void add(String value) throws IOException {
+        buffer.add(value);
+        bufferedBytes += estimateSize(value);
+        if (bufferedBytes >= memoryBudget / 2) {
+            spill();
+        }
+    }
+
+    /** Hands every value to {@code sink} in order. */
+    void forEachSorted(Consumer<String> sink) throws IOException {
+        String[] last = sorted(buffer);
+        buffer = new ArrayList<>();
+        finishSpill();
+        if (runs.isEmpty()) {
+            for (String value : last) {
+                stopIfInterrupted();
+                sink.accept(value);
+            }
+            return;
+        }
+        // The in-memory run takes one of the final merge's slots
+        while (runs.size() + 1 > MERGE_FAN_IN) {
+            mergePass();
+        }
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (Path run : runs) {
+                readers.add(new FileRun(run));
+            }
+            readers.add(new MemoryRun(last));
+            merge(readers, sink);
+        } finally {
+            closeAll(readers);
+        }
+    }
+
+    int spilledRuns() {
+        return runs.size() + (spilling == null ? 0 : 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finishSpill();
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+    }
+
+    // Object header, array header and two bytes per char of a String
+    private static long estimateSize(String value) {
+        return 56 + 2L * value.length();
+    }
+
+    // Waits for the previous run, so at most one is in flight, then hands this one to the pool
+    private void spill() throws IOException {
+        List<String> full = buffer;
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+        finishSpill();
+        spilling = ForkJoinPool.commonPool().submit(() -> writeRun(full));
+    }
+
+    private void finishSpill() throws IOException {
+        if (spilling == null) {
+            return;
+        }
+        ForkJoinTask<Path> pending = spilling;
+        spilling = null;
+        try {
+            runs.add(pending.get());
+        } catch (InterruptedException e) {
+            // Let the spill finish so its file is known and can be deleted
+            runs.add(pending.join());
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while spilling");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // A killed command, or one whose reader has gone, should not go on merging gigabytes
+    private static void stopIfInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while merging");
+        }
+    }
+
+    private String[] sorted(List<String> values) {
+        String[] array = values.toArray(new String[0]);
+        Arrays.parallelSort(array, order);
+        return array;
+    }
+
+    private Path writeRun(List<String> values) {
+        String[] array = sorted(values);
+        Path run = null;
+        try {
+            run = Files.createTempFile("cli-sort-", ".run");
+            try (DataOutputStream out = openRun(run)) {
+                for (String value : array) {
+                    writeValue(out, value);
+                }
+            }
+            return run;
+        } catch (IOException e) {
+            if (run != null) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static DataOutputStream openRun(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER_SIZE));
+    }
+
+    // Length-prefixed so values may contain any character, newlines included
+    private static void writeValue(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Merges the oldest MERGE_FAN_IN runs into one, which joins the end of the list
+    private void mergePass() throws IOException {
+        List<Path> group = new ArrayList<>(runs.subList(0, MERGE_FAN_IN));
+        Path merged = Files.createTempFile("cli-sort-", ".run");
+        runs.add(merged);
+        List<RunReader> readers = new ArrayList<>();
+        try (DataOutputStream out = openRun(merged)) {
+            for (Path run : group) {
+                readers.add(new FileRun(run));
+            }
+            merge(readers, value -> {
+                try {
+                    writeValue(out, value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            closeAll(readers);
+        }
+        runs.subList(0, MERGE_FAN_IN).clear();
+        for (Path run : group) {
+            Files.deleteIfExists(run);
+        }
+    }
+
+    private void merge(List<RunReader> readers, Consumer<String> sink) throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> order.compare(a.head, b.head));
+        for (RunReader reader : readers) {
+            if (reader.advance()) {
+                heads.add(reader);
+            }
+        }
+        while (!heads.isEmpty()) {
+            stopIfInterrupted();
+            RunReader smallest = heads.poll();
+            sink.accept(smallest.head);
+            if (smallest.advance()) {
+                heads.add(smallest);
+            }
+        }
+    }
+
+    private static void closeAll(List<RunReader> readers) throws IOException {
+        IOException failure = null;
+        for (RunReader reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private abstract static class RunReader implements Closeable {
+        String head;
+
+        abstract boolean advance() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static final class FileRun extends RunReader {
+        private final DataInputStream in;
+
+        FileRun(Path run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), RUN_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            head = new String(bytes, StandardCharsets.UTF_8);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class MemoryRun extends RunReader {
+        private final String[] values;
+        private int next;
+
+        MemoryRun(String[] values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean advance() {
+            head = next < values.length ? values[next++] : null;
+            return head != null;
+        }
+    }
+}
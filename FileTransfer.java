@@ -0,0 +1,247 @@
+package org.os;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/**
+ * Moves and copies files for {@code mv} and {@code cp}. A move is tried as an atomic rename first and only falls
+ * back to copy-then-delete when source and target are on different file systems.
+ *
+ * <p>Every copy uses one strategy, {@code Files.copy} unless {@code -Dcli.copy.strategy=transfer|buffered}
+ * says otherwise; it does not depend on the file. On ext4 with JDK 17 {@code Files.copy} kept up with
+ * {@code transferTo} from 1 KB to 100 MB and was several times faster when replacing an existing file;
+ * the buffered copy, which keeps holes, is slower at every size, so it is only worth choosing for sparse
+ * files. The buffer it uses is set with {@code -Dcli.copy.bufferSize=<bytes>}.
+ */
+final class FileTransfer {
+
+    enum Strategy {
+        /** Same file system, the file was renamed in place */
+        RENAME,
+        /** {@code Files.copy} with attribute preservation */
+        NATIVE,
+        /** {@code FileChannel.transferTo}, copied inside the kernel */
+        TRANSFER,
+        /** Direct-buffer copy that leaves all-zero blocks as holes */
+        BUFFERED
+    }
+
+    static final int BUFFER_SIZE = Integer.getInteger("cli.copy.bufferSize", 4 * 1024 * 1024);
+
+    private static final Strategy STRATEGY = configuredStrategy();
+
+    // Granularity at which the buffered strategy looks for holes
+    private static final int BLOCK_SIZE = 4096;
+
+    private FileTransfer() {
+    }
+
+    static Strategy move(Path source, Path target) throws IOException {
+        CliEvents.FileTransferEvent event = begin();
+        Strategy strategy = null;
+        try {
+            strategy = moveFile(source, target);
+            return strategy;
+        } finally {
+            commit(event, "move", source, target, strategy);
+        }
+    }
+
+    private static Strategy moveFile(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return Strategy.RENAME;
+        } catch (AtomicMoveNotSupportedException e) {
+            // Different file systems: copy the bytes, then remove the original
+        }
+
+        if (Files.isDirectory(source)) {
+            throw new IOException("cannot move a directory across file systems");
+        }
+        Strategy strategy = copyFile(source, target, STRATEGY, true);
+        try {
+            Files.delete(source);
+        } catch (IOException e) {
+            throw new IOException("failed to delete source file after copying", e);
+        }
+        return strategy;
+    }
+
+    static Strategy copy(Path source, Path target) throws IOException {
+        return copy(source, target, STRATEGY);
+    }
+
+    /** Copies as {@code cp} does: permissions always, timestamps only with {@code preserveTimes} ({@code -p}). */
+    static Strategy copy(Path source, Path target, boolean preserveTimes) throws IOException {
+        return copy(source, target, STRATEGY, preserveTimes);
+    }
+
+    static Strategy copy(Path source, Path target, Strategy strategy) throws IOException {
+        return copy(source, target, strategy, true);
+    }
+
+    private static Strategy copy(Path source, Path target, Strategy strategy, boolean preserveTimes) throws IOException {
+        CliEvents.FileTransferEvent event = begin();
+        Strategy used = null;
+        try {
+            used = copyFile(source, target, strategy, preserveTimes);
+            return used;
+        } finally {
+            commit(event, "copy", source, target, used);
+        }
+    }
+
+    private static Strategy copyFile(Path source, Path target, Strategy strategy, boolean preserveTimes)
+            throws IOException {
+        switch (strategy) {
+            case NATIVE:
+                if (preserveTimes) {
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                } else {
+                    // Creates the target with the source's permissions
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                break;
+            case TRANSFER:
+                transfer(source, target);
+                copyAttributes(source, target, preserveTimes);
+                break;
+            case BUFFERED:
+                copySparse(source, target);
+                copyAttributes(source, target, preserveTimes);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a copy strategy: " + strategy);
+        }
+        return strategy;
+    }
+
+    private static CliEvents.FileTransferEvent begin() {
+        CliEvents.FileTransferEvent event = new CliEvents.FileTransferEvent();
+        event.begin();
+        return event;
+    }
+
+    // The size is read from the target, which exists after both a copy and a move; a failed transfer reports -1
+    private static void commit(CliEvents.FileTransferEvent event, String operation, Path source, Path target,
+                               Strategy strategy) {
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.operation = operation;
+        event.source = source.toString();
+        event.target = target.toString();
+        event.strategy = strategy == null ? "failed" : strategy.name();
+        try {
+            event.bytes = strategy == null ? -1 : Files.size(target);
+        } catch (IOException e) {
+            event.bytes = -1;
+        }
+        event.commit();
+    }
+
+    private static Strategy configuredStrategy() {
+        switch (System.getProperty("cli.copy.strategy", "native")) {
+            case "transfer":
+                return Strategy.TRANSFER;
+            case "buffered":
+                return Strategy.BUFFERED;
+            default:
+                // Fastest at every size measured; see benchmarks/.../CopyFileBenchmark
+                return Strategy.NATIVE;
+        }
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static void copySparse(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long position = 0;
+            while (in.read(buffer.clear()) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    // Write each run of data blocks in one call and seek past each run of zero blocks,
+                    // which the file system keeps as a hole
+                    boolean zero = isZero(buffer, buffer.position(), blockEnd(buffer, buffer.position()));
+                    int runEnd = buffer.position();
+                    do {
+                        runEnd = blockEnd(buffer, runEnd);
+                    } while (runEnd < buffer.limit() && isZero(buffer, runEnd, blockEnd(buffer, runEnd)) == zero);
+
+                    ByteBuffer run = buffer.duplicate().limit(runEnd);
+                    if (zero) {
+                        position += run.remaining();
+                    } else {
+                        while (run.hasRemaining()) {
+                            position += out.write(run, position);
+                        }
+                    }
+                    buffer.position(runEnd);
+                }
+            }
+            // A trailing hole still has to count towards the file size
+            if (out.size() < position) {
+                out.write(ByteBuffer.allocate(1), position - 1);
+            }
+        }
+    }
+
+    private static int blockEnd(ByteBuffer buffer, int blockStart) {
+        return Math.min(blockStart + BLOCK_SIZE, buffer.limit());
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // What Files.copy(COPY_ATTRIBUTES) would have kept: permissions and, with times, timestamps
+    static void copyAttributes(Path source, Path target, boolean times) throws IOException {
+        PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (targetView != null) {
+            PosixFileAttributes attributes = Files.readAttributes(source, PosixFileAttributes.class);
+            targetView.setPermissions(attributes.permissions());
+            if (times) {
+                targetView.setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+            }
+        } else if (times) {
+            Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The search behind {@code grep}. Files are matched as bytes, never decoded as a whole: a file of at
+ * least {@value #MAP_THRESHOLD} bytes is mapped in chunks of about {@code cli.grep.chunk} bytes
+ * (default 16 MB), each moved forward to the next line break so no line is split, and the chunks are
+ * scanned on the fork-join pool. Smaller files are read whole, one task per file. Results are printed
+ * in file and chunk order as soon as the head of the queue is done, so output streams while later
+ * chunks are still being scanned.
+ *
+ * <p>A pattern without regex metacharacters is searched for with a plain byte scan that skips straight
+ * from match to match; anything else goes through {@link Pattern}, one line at a time.
+ */
+final class Grep {
+
+    static final int CHUNK_SIZE = Integer.getInteger("cli.grep.chunk", 16 * 1024 * 1024);
+    static final int MAP_THRESHOLD = 1024 * 1024;
+    private static final String METACHARACTERS = ".[]()*+?{}|^$\\";
+    // Chunks queued ahead of the one being printed; bounds the matches held in memory
+    private static final int WINDOW = 4 * ForkJoinPool.getCommonPoolParallelism() + 4;
+
+    private final byte[] literal;
+    // Horspool shift for each (case-folded) byte value
+    private final int[] skip = new int[256];
+    private final Pattern regex;
+    private final boolean ignoreCase;
+    private final boolean countOnly;
+    private final boolean lineNumbers;
+
+    /** @throws java.util.regex.PatternSyntaxException if {@code pattern} is not a valid regex */
+    Grep(String pattern, boolean ignoreCase, boolean countOnly, boolean lineNumbers) {
+        this.ignoreCase = ignoreCase;
+        this.countOnly = countOnly;
+        this.lineNumbers = lineNumbers;
+        boolean asciiPattern = pattern.chars().allMatch(c -> c < 0x80);
+        if (pattern.chars().noneMatch(c -> METACHARACTERS.indexOf(c) >= 0) && (asciiPattern || !ignoreCase)) {
+            literal = (ignoreCase ? pattern.toLowerCase(Locale.ROOT) : pattern).getBytes(StandardCharsets.UTF_8);
+            regex = null;
+            Arrays.fill(skip, Math.max(literal.length, 1));
+            for (int i = 0; i < literal.length - 1; i++) {
+                skip[literal[i] & 0xff] = literal.length - 1 - i;
+            }
+        } else {
+            literal = null;
+            regex = Pattern.compile(pattern, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+        }
+    }
+
+    /** A file to search and the name it is reported under. */
+    record Target(Path path, String name) {
+    }
+
+    /**
+     * Searches {@code targets} in order, prefixing matches with the file name if {@code withNames}; a
+     * file that cannot be read is reported on {@code err} and skipped.
+     */
+    void search(Iterable<Target> targets, boolean withNames, PrintStream out, PrintStream err)
+            throws InterruptedException {
+        try (Search search = new Search(withNames, out, err)) {
+            for (Target target : targets) {
+                search.add(target);
+            }
+            search.finish();
+        }
+    }
+
+    /**
+     * A search fed one target at a time, e.g. while a directory tree is being walked; matches are printed
+     * in the order the targets were added, and only a window of them is read ahead of the printing.
+     */
+    final class Search implements AutoCloseable {
+        private final ArrayDeque<Unit> queue = new ArrayDeque<>();
+        private final Printer printer;
+
+        Search(boolean withNames, PrintStream out, PrintStream err) {
+            printer = new Printer(out, err, withNames);
+        }
+
+        void add(Target target) throws InterruptedException {
+            enqueue(target, queue, printer);
+        }
+
+        /** Prints what is left. */
+        void finish() throws InterruptedException {
+            while (!queue.isEmpty()) {
+                printer.print(queue.removeFirst());
+            }
+        }
+
+        /** Cancels the targets not printed yet. */
+        @Override
+        public void close() {
+            queue.forEach(unit -> unit.task.cancel(false));
+        }
+    }
+
+    // A large file is split here, so its chunks join the queue one by one; a small one becomes one task.
+    // Once the queue is full, the oldest unit is printed before another is mapped.
+    private void enqueue(Target target, ArrayDeque<Unit> queue, Printer printer) throws InterruptedException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(target.path(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            queue.addLast(new Unit(target, failed(e), true, true));
+            return;
+        }
+        try (channel) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                queue.addLast(new Unit(target, new ReadAndScan(target.path()).fork(), true, true));
+                return;
+            }
+            long start = 0;
+            while (start < size) {
+                while (queue.size() >= WINDOW) {
+                    printer.print(queue.removeFirst());
+                }
+                long end = start + CHUNK_SIZE < size ? lineEnd(channel, start + CHUNK_SIZE, size) : size;
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("Line too long");
+                }
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                queue.addLast(new Unit(target, new Scan(chunk).fork(), start == 0, end == size));
+                start = end;
+            }
+        } catch (IOException e) {
+            queue.addLast(new Unit(target, failed(e), true, true));
+        } finally {
+            while (queue.size() > WINDOW) {
+                printer.print(queue.removeFirst());
+            }
+        }
+    }
+
+    /** Searches {@code in} block by block as it arrives. */
+    void search(InputStream in, PrintStream out) throws IOException {
+        Printer printer = new Printer(out, null, false);
+        printer.begin(null);
+        byte[] buffer = new byte[MAP_THRESHOLD];
+        int filled = 0;
+        int read;
+        while ((read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+            int complete = lastNewline(buffer, filled) + 1;
+            if (complete == 0) {
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                continue;
+            }
+            printer.matches(scan(ByteBuffer.wrap(buffer, 0, complete).slice()));
+            System.arraycopy(buffer, complete, buffer, 0, filled - complete);
+            filled -= complete;
+        }
+        if (filled > 0) {
+            printer.matches(scan(ByteBuffer.wrap(buffer, 0, filled).slice()));
+        }
+        printer.end();
+    }
+
+    private static int lastNewline(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The position just past the first line break at or after position, or size if there is none
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    // Keeps the error in its place in the queue, so it is reported between the right files' output
+    private static ForkJoinTask<Matches> failed(IOException e) {
+        ForkJoinTask<Matches> task = ForkJoinTask.adapt(() -> (Matches) null);
+        task.completeExceptionally(new UncheckedIOException(e));
+        return task;
+    }
+
+    private record Unit(Target target, ForkJoinTask<Matches> task, boolean first, boolean last) {
+    }
+
+    @SuppressWarnings("serial")
+    private final class Scan extends RecursiveTask<Matches> {
+        private final ByteBuffer chunk;
+
+        Scan(ByteBuffer chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Matches compute() {
+            return scan(chunk);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class ReadAndScan extends RecursiveTask<Matches> {
+        private final Path file;
+
+        ReadAndScan(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        protected Matches compute() {
+            // Read to EOF rather than trusting the size, which is 0 for files like those in /proc
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return scan(ByteBuffer.wrap(Channels.newInputStream(channel).readAllBytes()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Matching lines of one chunk, as offsets into it and line numbers counted from its start. */
+    private static final class Matches {
+        final ByteBuffer data;
+        long count;
+        long newlines;
+        int[] lines = new int[0];
+
+        Matches(ByteBuffer data) {
+            this.data = data;
+        }
+
+        void add(int start, int end, int line) {
+            int at = (int) count * 3;
+            if (at == lines.length) {
+                lines = Arrays.copyOf(lines, Math.max(48, at * 2));
+            }
+            lines[at] = start;
+            lines[at + 1] = end;
+            lines[at + 2] = line;
+            count++;
+        }
+    }
+
+    private Matches scan(ByteBuffer data) {
+        Matches matches = new Matches(data);
+        int end = data.limit();
+        int position = 0;
+        int line = 0;
+        int counted = 0;
+        if (literal != null) {
+            // Jump from match to match; the lines in between are never looked at one by one
+            while (position < end) {
+                int hit = indexOf(data, position, end);
+                if (hit < 0) {
+                    break;
+                }
+                int start = lineStart(data, position, hit);
+                int stop = nextNewline(data, hit, end);
+                if (lineNumbers) {
+                    line += countNewlines(data, counted, start);
+                    counted = start;
+                }
+                record(matches, start, stop, line + 1);
+                position = stop + 1;
+            }
+            if (lineNumbers) {
+                line += countNewlines(data, counted, end);
+            }
+        } else {
+            Matcher matcher = regex.matcher("");
+            Latin1 view = new Latin1(data);
+            while (position < end) {
+                int stop = nextNewline(data, position, end);
+                line++;
+                // Only a pure ASCII line reads the same as bytes and as UTF-8: elsewhere "." or [^a] would
+                // match each byte of a multi-byte character
+                CharSequence text = isAscii(data, position, stop) ? view.line(position, stop) : decode(data, position, stop);
+                if (matcher.reset(text).find()) {
+                    record(matches, position, stop, line);
+                }
+                position = stop + 1;
+            }
+            // A last line without a line break was counted above but ends no line
+            if (end > 0 && data.get(end - 1) != '\n') {
+                line--;
+            }
+        }
+        matches.newlines = line;
+        return matches;
+    }
+
+    private void record(Matches matches, int start, int end, int line) {
+        if (countOnly) {
+            matches.count++;
+        } else {
+            matches.add(start, end, line);
+        }
+    }
+
+    // Horspool: compare from the pattern's last byte and, on a mismatch, skip ahead by how far that byte
+    // is from the end of the pattern, so most bytes of a long line are never read
+    private int indexOf(ByteBuffer data, int from, int to) {
+        byte[] pattern = literal;
+        int last = pattern.length - 1;
+        if (last < 0) {
+            return from;
+        }
+        for (int i = from; i + last < to; ) {
+            byte b = fold(data.get(i + last));
+            if (b == pattern[last]) {
+                int k = last - 1;
+                while (k >= 0 && fold(data.get(i + k)) == pattern[k]) {
+                    k--;
+                }
+                if (k < 0) {
+                    return i;
+                }
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    private byte fold(byte b) {
+        return ignoreCase && b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static int lineStart(ByteBuffer data, int from, int position) {
+        for (int i = position - 1; i >= from; i--) {
+            if (data.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return from;
+    }
+
+    private static int nextNewline(ByteBuffer data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data.get(i) == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int countNewlines(ByteBuffer data, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (data.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Eight bytes at a time: any byte with its high bit set is not ASCII
+    private static boolean isAscii(ByteBuffer data, int start, int end) {
+        int i = start;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            if ((data.getLong(i) & 0x8080808080808080L) != 0) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (data.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer data, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        data.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Bytes read as ISO-8859-1 chars; for an ASCII line these are exactly the chars decoding would give
+    private static final class Latin1 implements CharSequence {
+        private final ByteBuffer data;
+        private int start;
+        private int end;
+
+        Latin1(ByteBuffer data) {
+            this.data = data;
+        }
+
+        Latin1 line(int start, int end) {
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data.get(start + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new Latin1(data).line(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[end - start];
+            data.get(start, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // Writes the matches of consecutive chunks, carrying line numbers and counts across a file's chunks
+    private final class Printer {
+        private final PrintStream out;
+        private final PrintStream err;
+        private final boolean withNames;
+        private byte[] prefix = new byte[0];
+        private byte[] scratch = new byte[8192];
+        private long lineBase;
+        private long count;
+
+        Printer(PrintStream out, PrintStream err, boolean withNames) {
+            this.out = out;
+            this.err = err;
+            this.withNames = withNames;
+        }
+
+        void print(Unit unit) throws InterruptedException {
+            // get() returns finished tasks without looking at the flag, and a killed grep or one whose
+            // reader has gone should not scan the rest of the file
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Matches matches;
+            try {
+                matches = unit.task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException unchecked ? unchecked.getCause() : e.getCause();
+                err.println("grep: " + unit.target.name() + ": "
+                        + (cause instanceof Exception exception ? DirectoryWalker.describe(exception) : cause));
+                return;
+            }
+            if (unit.first) {
+                begin(unit.target.name());
+            }
+            matches(matches);
+            if (unit.last) {
+                end();
+            }
+        }
+
+        void begin(String name) {
+            prefix = !withNames ? new byte[0] : (name + ":").getBytes(StandardCharsets.UTF_8);
+            lineBase = 0;
+            count = 0;
+        }
+
+        void matches(Matches matches) {
+            count += matches.count;
+            if (!countOnly) {
+                for (int i = 0; i < matches.count * 3 && !Thread.currentThread().isInterrupted(); i += 3) {
+                    line(matches.data, matches.lines[i], matches.lines[i + 1], lineBase + matches.lines[i + 2]);
+                }
+            }
+            lineBase += matches.newlines;
+        }
+
+        void end() {
+            if (countOnly) {
+                out.write(prefix, 0, prefix.length);
+                out.print(count);
+                out.write('\n');
+            }
+        }
+
+        private void line(ByteBuffer data, int start, int end, long number) {
+            byte[] numberBytes = lineNumbers ? (number + ":").getBytes(StandardCharsets.US_ASCII) : new byte[0];
+            int length = prefix.length + numberBytes.length + (end - start) + 1;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            System.arraycopy(prefix, 0, scratch, 0, prefix.length);
+            System.arraycopy(numberBytes, 0, scratch, prefix.length, numberBytes.length);
+            int at = prefix.length + numberBytes.length;
+            data.get(start, scratch, at, end - start);
+            scratch[length - 1] = '\n';
+            out.write(scratch, 0, length);
+        }
+    }
+}
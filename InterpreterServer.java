@@ -0,0 +1,350 @@
+package org.os;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+
+/**
+ * Serves interpreter sessions over a local socket, so a JVM started once can run commands for many
+ * clients. Every connection gets its own {@link Session} and thread (virtual where available) and is
+ * driven through {@link CLI#execute(Session, String)} like the console.
+ *
+ * <p>A session runs any command, external programs included, as the server's owner, so by default the
+ * server listens on a Unix-domain socket in a directory only that user can enter ({@link #defaultAddress}),
+ * and any Unix-domain socket it serves is made readable and writable by its owner only before it appears
+ * at its path. Other addresses are {@code unix:/path/to.sock}, or a port number for loopback TCP, which any
+ * local user can reach: TCP is only served with a shared token in {@value #TOKEN_VARIABLE}, which clients
+ * must send as their first line.
+ */
+final class InterpreterServer implements Closeable {
+
+    static final String TOKEN_VARIABLE = "CLI_SERVER_TOKEN";
+
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final Path cwd;
+    // Required first line of every connection, or null for a Unix-domain socket
+    private final byte[] token;
+
+    private InterpreterServer(ServerSocketChannel server, SocketAddress address, Path cwd, byte[] token) {
+        this.server = server;
+        this.address = address;
+        this.cwd = cwd;
+        this.token = token;
+    }
+
+    /**
+     * {@code cli.sock} in {@code $XDG_RUNTIME_DIR/cli}, or in {@code cli-<user>} under the temporary
+     * directory when there is no runtime directory.
+     */
+    static String defaultAddress() {
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        Path dir = runtime != null && !runtime.isEmpty() ? Paths.get(runtime, "cli")
+                : Paths.get(System.getProperty("java.io.tmpdir"), "cli-" + System.getProperty("user.name"));
+        return "unix:" + dir.resolve("cli.sock");
+    }
+
+    // Creates dir, or checks that the existing one is a real directory of ours, and makes it owner-only
+    private static void ownerOnlyDirectory(Path dir) throws IOException {
+        if (Files.getFileStore(dir.getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+            PosixFileAttributes attributes = Files.readAttributes(dir, PosixFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isDirectory() || !attributes.owner().getName().equals(System.getProperty("user.name"))) {
+                throw new IOException(dir + " is not a directory owned by " + System.getProperty("user.name"));
+            }
+            Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+
+    static SocketAddress parseAddress(String spec) {
+        if (spec.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(spec.substring("unix:".length()));
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+    }
+
+    /**
+     * Binds the listening socket; new sessions start in {@code cwd}.
+     *
+     * @param token the shared token TCP clients must send first; ignored for a Unix-domain socket
+     * @throws IllegalArgumentException for a TCP address without a token
+     */
+    static InterpreterServer open(SocketAddress address, Path cwd, String token) throws IOException {
+        if (address instanceof UnixDomainSocketAddress unix) {
+            removeStaleSocket(unix);
+            ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            bindOwnerOnly(server, unix);
+            return new InterpreterServer(server, address, cwd, null);
+        }
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("TCP needs a shared token in " + TOKEN_VARIABLE
+                    + "; use a unix: address for local use");
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(address);
+        return new InterpreterServer(server, server.getLocalAddress(), cwd, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Binds in a new owner-only directory beside the socket's path and moves the socket into place once it
+    // is owner-only itself, so wherever a unix: address points it is never reachable with the umask's permissions
+    private static void bindOwnerOnly(ServerSocketChannel server, UnixDomainSocketAddress address) throws IOException {
+        Path path = address.getPath().toAbsolutePath();
+        if (!Files.getFileStore(path.getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            server.bind(address);
+            return;
+        }
+        Path staging = Files.createTempDirectory(path.getParent(), ".cli-",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = staging.resolve(path.getFileName());
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(staging);
+        }
+    }
+
+    // A socket file left by a previous run would make bind fail; anything else at the path is not ours to remove
+    private static void removeStaleSocket(UnixDomainSocketAddress address) throws IOException {
+        Path path = address.getPath();
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocket(path)) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        try {
+            SocketChannel.open(address).close();
+        } catch (ConnectException e) {
+            // Nobody listening: the server that bound it is gone
+            Files.delete(path);
+            return;
+        }
+        throw new IOException(path + " is in use by another server");
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        if (Files.getFileStore(path.toAbsolutePath().getParent()).supportsFileAttributeView("unix")) {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000;
+        }
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+
+    SocketAddress address() {
+        return address;
+    }
+
+    /** Accepts connections until the server is closed. */
+    void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel connection = server.accept();
+                Threads.start("cli-session-" + connection.getRemoteAddress(), () -> handle(connection));
+            }
+        } catch (AsynchronousCloseException e) {
+            // Closed by close()
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+        }
+    }
+
+    private void handle(SocketChannel connection) {
+        Session session = null;
+        try (connection) {
+            InputStream in = new ChannelInput(connection);
+            PrintStream out = new ChannelPrintStream(connection, CLI.PIPE_BUFFER_SIZE, true, false);
+            if (token != null) {
+                String line = readLine(in);
+                if (line == null || !MessageDigest.isEqual(token, line.getBytes(StandardCharsets.UTF_8))) {
+                    out.println("Authentication failed");
+                    out.flush();
+                    return;
+                }
+            }
+            session = new Session(cwd, in, out, out);
+
+            out.println("CLI - Type 'help' for available commands.");
+            while (!session.exitRequested()) {
+                out.print("CLI> ");
+                out.flush();
+                String line = readLine(in);
+                if (line == null) {
+                    break;
+                }
+                CLI.execute(session, line);
+                session.jobs().reportFinished(out);
+                out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away; nothing left to report to
+        } finally {
+            if (session != null) {
+                session.jobs().killAll();
+            }
+        }
+    }
+
+    /**
+     * Reads one line without reading past it, so whatever follows stays available to commands that
+     * read the session's input.
+     *
+     * @return the line without its terminator, or null at end of input
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * The thin client: sends standard input to the server and prints whatever comes back; over TCP the
+     * token comes first.
+     */
+    static void connect(SocketAddress address, String token) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            if (!(address instanceof UnixDomainSocketAddress)) {
+                if (token == null || token.isEmpty()) {
+                    throw new IllegalArgumentException("TCP needs the server's token in " + TOKEN_VARIABLE);
+                }
+                ByteBuffer line = ByteBuffer.wrap((token + "\n").getBytes(StandardCharsets.UTF_8));
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+            }
+            Threads.start("cli-client-input", () -> {
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = System.in.read(buffer)) != -1) {
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                    }
+                    channel.shutdownOutput();
+                } catch (IOException e) {
+                    // Connection closed by the server
+                }
+            });
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer.clear()) != -1) {
+                System.out.write(buffer.array(), 0, buffer.position());
+                System.out.flush();
+            }
+        }
+    }
+
+    /** @param spec the address, or null for {@link #defaultAddress} */
+    static void main(String mode, String spec) throws IOException {
+        SocketAddress address = parseAddress(spec == null ? defaultAddress() : spec);
+        String token = System.getenv(TOKEN_VARIABLE);
+        if ("--connect".equals(mode)) {
+            connect(address, token);
+            return;
+        }
+        if (spec == null) {
+            ownerOnlyDirectory(((UnixDomainSocketAddress) address).getPath().getParent());
+        }
+        try (InterpreterServer server = open(address, Paths.get(System.getProperty("user.dir")), token)) {
+            System.out.println("CLI server listening on " + server.address()
+                    + (Threads.virtual() ? " (virtual threads)" : " (platform threads)"));
+            server.serve();
+        }
+    }
+
+    /**
+     * Reads the socket with plain channel reads. {@code Channels.newInputStream} would hold the channel's
+     * blocking lock while waiting for input and stall every write to the same connection.
+     */
+    private static final class ChannelInput extends InputStream {
+        private final ByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192).flip();
+
+        ChannelInput(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read > 0;
+        }
+    }
+}
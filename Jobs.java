@@ -0,0 +1,195 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The background jobs of one {@link Session}. A job runs its pipeline on its own thread (virtual where
+ * available) with no terminal input; its stdout and stderr go to a temporary file, so a job writing
+ * gigabytes costs disk rather than heap, and are replayed to the terminal by {@code wait} or {@code fg},
+ * or at the next prompt once the job is done. Replaying a job drops it and its file, and so does the end
+ * of the session.
+ */
+final class Jobs {
+
+    enum State {
+        RUNNING("Running"),
+        DONE("Done"),
+        KILLED("Killed");
+
+        final String label;
+
+        State(String label) {
+            this.label = label;
+        }
+    }
+
+    static final class Job {
+        final int id;
+        final String command;
+        private final Path output;
+        private volatile Thread thread;
+        private volatile State state = State.RUNNING;
+
+        private Job(int id, String command, Path output) {
+            this.id = id;
+            this.command = command;
+            this.output = output;
+        }
+
+        // RUNNING -> DONE when the thread ends, RUNNING -> KILLED on kill, whichever comes first
+        private synchronized boolean finish(State end) {
+            if (state != State.RUNNING) {
+                return false;
+            }
+            state = end;
+            return true;
+        }
+
+        State state() {
+            return state;
+        }
+    }
+
+    // By id, so listings come out in start order
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    /** Starts {@code pipeline} in the background; {@code command} is the line shown by {@code jobs}. */
+    Job start(Session session, String command, Parser.Pipeline pipeline) throws IOException {
+        Path output = Files.createTempFile("cli-job-", ".out");
+        PrintStream capture = new ChannelPrintStream(FileChannel.open(output, StandardOpenOption.WRITE),
+                CLI.PIPE_BUFFER_SIZE, true, false);
+        synchronized (this) {
+            int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+            Job job = new Job(id, command, output);
+            // Set and started before anyone can look the job up, so kill and await always find its thread
+            job.thread = Threads.create("job-" + id, () -> {
+                try {
+                    CLI.run(session, pipeline, InputStream.nullInputStream(), capture, capture);
+                } finally {
+                    capture.close();
+                    if (!job.finish(State.DONE)) {
+                        removeQuietly(job);
+                    }
+                }
+            });
+            jobs.put(id, job);
+            job.thread.start();
+            return job;
+        }
+    }
+
+    synchronized Job get(int id) {
+        return jobs.get(id);
+    }
+
+    /** The most recently started job, or null if there is none. */
+    synchronized Job latest() {
+        return jobs.isEmpty() ? null : jobs.lastEntry().getValue();
+    }
+
+    synchronized List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /** Prints every job; finished ones stay listed until their output is replayed. */
+    void print(PrintStream out) {
+        for (Job job : list()) {
+            out.println(format(job));
+        }
+    }
+
+    /** For the prompt loop: prints each job that finished since the last prompt with its output, and drops it. */
+    void reportFinished(PrintStream out) {
+        for (Job job : list()) {
+            if (job.state == State.DONE) {
+                out.println(format(job));
+                try {
+                    replay(job, out);
+                } catch (IOException e) {
+                    out.println("[" + job.id + "] output lost: " + DirectoryWalker.describe(e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until {@code job} finishes, then writes its captured output to {@code out} and removes it.
+     *
+     * @return false if the waiting thread was interrupted first; the job is left in place
+     */
+    boolean await(Job job, PrintStream out) throws IOException {
+        try {
+            job.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (job.state == State.DONE) {
+            replay(job, out);
+        } else {
+            remove(job);
+        }
+        return true;
+    }
+
+    // Writes the output a finished job captured, then drops the job and its file
+    private void replay(Job job, PrintStream out) throws IOException {
+        try (FileChannel captured = FileChannel.open(job.output, StandardOpenOption.READ)) {
+            CLI.writeFile(captured, out);
+            out.flush();
+        } finally {
+            remove(job);
+        }
+    }
+
+    /**
+     * Interrupts the job's thread. Blocking channel I/O fails at once, which also breaks the pipes of
+     * any later stages. The job and the output captured so far are dropped once its thread ends.
+     *
+     * @return false if the job had already finished
+     */
+    boolean kill(Job job) {
+        if (!job.finish(State.KILLED)) {
+            return false;
+        }
+        job.thread.interrupt();
+        return true;
+    }
+
+    /** Kills every running job and deletes all captured output; used when the session ends. */
+    void killAll() {
+        for (Job job : list()) {
+            kill(job);
+            // Unix lets a file go while a killed job's thread still has it open
+            removeQuietly(job);
+        }
+    }
+
+    private void remove(Job job) throws IOException {
+        synchronized (this) {
+            jobs.remove(job.id);
+        }
+        Files.deleteIfExists(job.output);
+    }
+
+    private void removeQuietly(Job job) {
+        try {
+            remove(job);
+        } catch (IOException e) {
+            // A leftover temp file is harmless
+        }
+    }
+
+    static String format(Job job) {
+        return String.format("[%d] %-8s %s", job.id, job.state.label, job.command);
+    }
+}
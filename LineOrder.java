@@ -0,0 +1,119 @@
+package org.os;
+
+import java.util.Comparator;
+
+/**
+ * The order {@code sort} puts lines in. A key is a range of whitespace-separated fields, from the start
+ * of field {@code first} to the end of field {@code last} (1-based; 0 for the end of the line), with the
+ * blanks in front of it skipped. Keys compare as text or, with {@code numeric}, by their leading number;
+ * lines with equal keys fall back to comparing the whole line, as in POSIX sort.
+ *
+ * <p>Keys are compared in place, without cutting substrings, since a large sort makes tens of
+ * comparisons per line.
+ */
+final class LineOrder implements Comparator<String> {
+
+    private final boolean numeric;
+    private final int first;
+    private final int last;
+
+    private LineOrder(boolean numeric, int first, int last) {
+        this.numeric = numeric;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @param first the key's first field, 1 for the whole line
+     * @param last  the key's last field, or 0 for up to the end of the line
+     */
+    static Comparator<String> of(boolean numeric, boolean reverse, int first, int last) {
+        Comparator<String> order = first == 1 && last == 0 && !numeric
+                ? Comparator.naturalOrder() : new LineOrder(numeric, first, last);
+        return reverse ? order.reversed() : order;
+    }
+
+    @Override
+    public int compare(String a, String b) {
+        int aStart = keyStart(a);
+        int bStart = keyStart(b);
+        int aEnd = keyEnd(a, aStart);
+        int bEnd = keyEnd(b, bStart);
+        int result = numeric ? Double.compare(number(a, aStart, aEnd), number(b, bStart, bEnd))
+                : compareText(a, aStart, aEnd, b, bStart, bEnd);
+        return result != 0 ? result : a.compareTo(b);
+    }
+
+    private int keyStart(String line) {
+        int position = 0;
+        for (int field = 1; field < first; field++) {
+            position = skipBlanks(line, position);
+            while (position < line.length() && !isBlank(line.charAt(position))) {
+                position++;
+            }
+        }
+        return skipBlanks(line, position);
+    }
+
+    private int keyEnd(String line, int start) {
+        if (last == 0) {
+            return line.length();
+        }
+        int position = start;
+        for (int field = first; field <= last; field++) {
+            position = skipBlanks(line, position);
+            while (position < line.length() && !isBlank(line.charAt(position))) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    private static int skipBlanks(String line, int position) {
+        while (position < line.length() && isBlank(line.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int compareText(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            int diff = a.charAt(aStart + i) - b.charAt(bStart + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    // The leading [-]digits[.digits] of the key; a key that does not start with a number counts as 0
+    private static double number(String line, int start, int end) {
+        int position = start;
+        boolean negative = position < end && line.charAt(position) == '-';
+        if (negative) {
+            position++;
+        }
+        double value = 0;
+        while (position < end && isDigit(line.charAt(position))) {
+            value = value * 10 + (line.charAt(position++) - '0');
+        }
+        if (position < end && line.charAt(position) == '.') {
+            double scale = 0.1;
+            for (position++; position < end && isDigit(line.charAt(position)); position++) {
+                value += (line.charAt(position) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        // 0 - value rather than -value, so that "-0" equals "0"
+        return negative ? 0 - value : value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
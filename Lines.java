@@ -0,0 +1,144 @@
+package org.os;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The line handling behind {@code head} and {@code tail}. Neither reads more than it must: {@code head}
+ * stops at the last line it prints, and {@code tail} on a file reads backwards from EOF in blocks until it
+ * has seen enough line breaks, so the last lines of a 20 GB log cost a few positional reads.
+ */
+final class Lines {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // How often tail -f looks at the file when no change notification arrives (e.g. NFS, or a
+    // WatchService that polls rather than being told by the kernel)
+    private static final long FOLLOW_POLL_MILLIS = 1000;
+
+    private Lines() {
+    }
+
+    /** Copies the first {@code lines} lines of {@code in} and reads no further than the block holding the last. */
+    static void head(InputStream in, long lines, PrintStream out) throws IOException {
+        if (lines <= 0) {
+            return;
+        }
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n' && --lines == 0) {
+                    out.write(buffer, 0, i + 1);
+                    return;
+                }
+            }
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * @return where the last {@code lines} lines of {@code source} start, found by reading backwards from
+     * EOF; a line break at the very end closes the last line rather than starting an empty one
+     */
+    static long tailStart(FileChannel source, long lines) throws IOException {
+        long size = source.size();
+        if (lines <= 0) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = size;
+        while (position > 0) {
+            int length = (int) Math.min(BLOCK_SIZE, position);
+            position -= length;
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File shrank while reading");
+                }
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n' && position + i != size - 1 && --lines == 0) {
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Copies the last {@code lines} lines of {@code in}, which cannot seek, keeping only those in memory. */
+    static void tail(InputStream in, long lines, PrintStream out) throws IOException {
+        ArrayDeque<byte[]> last = new ArrayDeque<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    line.write(buffer, start, i + 1 - start);
+                    keep(last, line, lines);
+                    start = i + 1;
+                }
+            }
+            line.write(buffer, start, read - start);
+        }
+        if (line.size() > 0) {
+            keep(last, line, lines);
+        }
+        for (byte[] bytes : last) {
+            out.write(bytes);
+        }
+    }
+
+    private static void keep(ArrayDeque<byte[]> last, ByteArrayOutputStream line, long lines) {
+        if (lines > 0) {
+            last.addLast(line.toByteArray());
+            if (last.size() > lines) {
+                last.removeFirst();
+            }
+        }
+        line.reset();
+    }
+
+    /**
+     * Writes what is appended to {@code source} after {@code position}, woken by change notifications on
+     * the file's directory or, failing those, by polling its size. Only new bytes are read. Returns when
+     * the thread is interrupted (a killed job) or {@code out} fails (the reader went away).
+     */
+    static void follow(Path file, String name, FileChannel source, long position, PrintStream out, PrintStream err)
+            throws IOException {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Path dir = file.toAbsolutePath().getParent();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            while (!out.checkError()) {
+                long size = source.size();
+                if (size < position) {
+                    err.println("tail: " + name + ": file truncated");
+                    position = 0;
+                }
+                if (size > position) {
+                    position = CLI.writeFile(source, position, size, out);
+                }
+                out.flush();
+                WatchKey key = watcher.poll(FOLLOW_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
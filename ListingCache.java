@@ -0,0 +1,248 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sorted directory listings kept in memory for {@code ls}, least recently used first out once the
+ * cached names pass a memory cap. Builtins that create, remove or rename entries call
+ * {@link #invalidate} before they return, so the next {@code ls} sees their change; every cached
+ * directory is also registered with a {@link WatchService}, which drops listings changed by anything
+ * else (external programs, other processes) as soon as the notification arrives.
+ *
+ * <p>A directory's watch key is shared by its cached listing and any read of it in progress, and is
+ * only cancelled once none of them needs it any more.
+ *
+ * <p>Off unless started with {@code -Dcli.ls.cache=true}; the cap is {@code -Dcli.ls.cacheMemory=<bytes>}.
+ */
+final class ListingCache {
+
+    static final ListingCache INSTANCE = new ListingCache(Boolean.getBoolean("cli.ls.cache"),
+            Long.getLong("cli.ls.cacheMemory", 32L * 1024 * 1024));
+
+    private volatile boolean enabled;
+    private final long memoryCap;
+
+    // Access-ordered, so iteration starts at the least recently used listing
+    private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Watch> watches = new HashMap<>();
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private WatchService watcher;
+    private long cachedBytes;
+
+    // Bumped by every invalidation; a listing read while it changed is not cached
+    private long epoch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private record Listing(List<String> names, long bytes) {
+    }
+
+    // A directory's watch key and how many cached listings and reads in progress rely on it
+    private static final class Watch {
+        final WatchKey key;
+        int users;
+
+        Watch(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    ListingCache(boolean enabled, long memoryCap) {
+        this.enabled = enabled;
+        this.memoryCap = memoryCap;
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /** Turns the cache on or off at run time; turning it off drops every listing. */
+    synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            for (Path dir : new ArrayList<>(listings.keySet())) {
+                remove(dir);
+            }
+        }
+    }
+
+    /**
+     * Returns every name in {@code dir}, hidden ones included, in natural order, or null when the
+     * listing would not fit in the cache or the directory cannot be watched; the caller then falls back
+     * to an uncached listing.
+     */
+    List<String> list(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        long startEpoch;
+        synchronized (this) {
+            Listing cached = listings.get(key);
+            if (cached != null) {
+                hits++;
+                return cached.names();
+            }
+            misses++;
+            startEpoch = epoch;
+            // Watch before reading, so a change made during the read still invalidates
+            try {
+                acquire(key);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        long bytes = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(key)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                names.add(name);
+                bytes += 56 + 2L * name.length();
+                if (bytes > memoryCap) {
+                    synchronized (this) {
+                        release(key);
+                    }
+                    return null;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                release(key);
+            }
+            throw e;
+        }
+        Collections.sort(names);
+        List<String> listing = Collections.unmodifiableList(names);
+
+        synchronized (this) {
+            if (epoch == startEpoch && enabled) {
+                Listing previous = listings.put(key, new Listing(listing, bytes));
+                if (previous != null) {
+                    forget(key, previous);
+                }
+                cachedBytes += bytes;
+                evictToCap();
+            } else {
+                release(key);
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Drops the listings a change to {@code path} makes stale: that of its parent directory, and those
+     * of {@code path} and everything below it, which may have been removed, moved or replaced.
+     */
+    synchronized void invalidate(Path path) {
+        if (!enabled) {
+            return;
+        }
+        epoch++;
+        Path changed = path.toAbsolutePath().normalize();
+        Path parent = changed.getParent();
+        for (Path dir : new ArrayList<>(listings.keySet())) {
+            if (dir.equals(parent) || dir.startsWith(changed)) {
+                invalidations++;
+                remove(dir);
+            }
+        }
+    }
+
+    synchronized void printStats(PrintStream out) {
+        if (!enabled) {
+            out.println("ls cache: disabled (start with -Dcli.ls.cache=true)");
+            return;
+        }
+        long lookups = hits + misses;
+        out.printf("ls cache: %d hits, %d misses, %.1f%% hit rate%n", hits, misses,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+        out.printf("ls cache: %d directories, %d KB of %d KB, %d evictions, %d invalidations%n",
+                listings.size(), cachedBytes / 1024, memoryCap / 1024, evictions, invalidations);
+    }
+
+    // Registers dir on first use; registering a directory again would hand back the same key
+    private void acquire(Path dir) throws IOException {
+        Watch watch = watches.get(dir);
+        if (watch == null) {
+            if (watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::watch, "ls-cache-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            watch = new Watch(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE));
+            watches.put(dir, watch);
+            watchedDirs.put(watch.key, dir);
+        }
+        watch.users++;
+    }
+
+    private void release(Path dir) {
+        Watch watch = watches.get(dir);
+        if (watch != null && --watch.users == 0) {
+            watches.remove(dir);
+            watchedDirs.remove(watch.key);
+            watch.key.cancel();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                // Create, delete and overflow all mean the cached names can no longer be trusted
+                key.pollEvents();
+                synchronized (this) {
+                    epoch++;
+                    Path dir = watchedDirs.get(key);
+                    if (dir != null && listings.containsKey(dir)) {
+                        invalidations++;
+                        remove(dir);
+                    }
+                    // A key cancelled meanwhile stays invalid; its directory is registered afresh when next listed
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher shut down
+        }
+    }
+
+    private void evictToCap() {
+        Iterator<Map.Entry<Path, Listing>> eldest = listings.entrySet().iterator();
+        while (cachedBytes > memoryCap && eldest.hasNext()) {
+            Map.Entry<Path, Listing> entry = eldest.next();
+            eldest.remove();
+            forget(entry.getKey(), entry.getValue());
+            evictions++;
+        }
+    }
+
+    private void remove(Path dir) {
+        forget(dir, listings.remove(dir));
+    }
+
+    private void forget(Path dir, Listing listing) {
+        cachedBytes -= listing.bytes();
+        release(dir);
+    }
+}
@@ -0,0 +1,104 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The {@code ls -l} formatter. Names are collected in batches; each batch reads its attributes with a
+ * single {@code readAttributes} call per entry, in parallel once the batch is large enough, and is
+ * then printed in the order the names arrived.
+ */
+final class LongListing implements Consumer<String> {
+
+    static final int BATCH_SIZE = 4096;
+
+    // Below this many entries the fork-join hand-off costs more than the stat calls
+    static final int PARALLEL_THRESHOLD = 256;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("MMM dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private final Path dir;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final List<String> batch = new ArrayList<>();
+
+    LongListing(Path dir, PrintStream out, PrintStream err) {
+        this.dir = dir;
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override
+    public void accept(String name) {
+        batch.add(name);
+        if (batch.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    void flush() {
+        List<Line> lines = (batch.size() >= PARALLEL_THRESHOLD ? batch.parallelStream() : batch.stream())
+                .map(this::describe)
+                .toList();
+        for (Line line : lines) {
+            (line.error() ? err : out).println(line.text());
+        }
+        batch.clear();
+    }
+
+    private record Line(String text, boolean error) {
+    }
+
+    private Line describe(String name) {
+        try {
+            return new Line(format(name, dir.resolve(name)), false);
+        } catch (IOException | UncheckedIOException e) {
+            return new Line("ls: cannot access '" + name + "': " + DirectoryWalker.describe(e), true);
+        }
+    }
+
+    private static String format(String name, Path entry) throws IOException {
+        String permissions;
+        String owner;
+        String group;
+        BasicFileAttributes attributes;
+        try {
+            PosixFileAttributes posix = Files.readAttributes(entry, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            permissions = PosixFilePermissions.toString(posix.permissions());
+            owner = posix.owner().getName();
+            group = posix.group().getName();
+            attributes = posix;
+        } catch (UnsupportedOperationException e) {
+            attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            permissions = "?????????";
+            owner = "-";
+            group = "-";
+        }
+
+        return String.format("%c%s %-8s %-8s %12d %s %s", typeOf(attributes), permissions, owner, group,
+                attributes.size(), TIME_FORMAT.format(attributes.lastModifiedTime().toInstant()), name);
+    }
+
+    private static char typeOf(BasicFileAttributes attributes) {
+        if (attributes.isDirectory()) {
+            return 'd';
+        }
+        if (attributes.isSymbolicLink()) {
+            return 'l';
+        }
+        return attributes.isRegularFile() ? '-' : '?';
+    }
+}
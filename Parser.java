@@ -0,0 +1,187 @@
+package org.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns a command line into a {@link Pipeline}. Lexing and parsing happen in a single pass over the
+ * characters with one reused builder, so the only allocations are the words and the tree itself.
+ *
+ * <p>Grammar: stages separated by {@code |}; each stage is words plus redirections
+ * {@code < file}, {@code > file}, {@code >> file}, {@code 2> file}, {@code 2>> file} and {@code 2>&1}.
+ * A trailing {@code &} runs the whole pipeline as a background job.
+ * Single quotes keep everything literally, double quotes allow {@code \"} and {@code \\}, and a
+ * backslash outside quotes escapes the next character.
+ */
+final class Parser {
+
+    enum RedirectType {
+        /** {@code <} */
+        READ,
+        /** {@code >} */
+        WRITE,
+        /** {@code >>} */
+        APPEND,
+        /** {@code 2>&1} */
+        MERGE_ERRORS
+    }
+
+    /** @param fd 0 for stdin, 1 for stdout, 2 for stderr */
+    record Redirect(int fd, RedirectType type, String target) {
+    }
+
+    record SimpleCommand(String[] argv, List<Redirect> redirects) {
+
+        String name() {
+            return argv[0];
+        }
+    }
+
+    record Pipeline(List<SimpleCommand> stages, boolean background) {
+    }
+
+    private final String line;
+    private final StringBuilder word = new StringBuilder();
+    private int pos;
+
+    private Parser(String line) {
+        this.line = line;
+    }
+
+    /**
+     * @return the parsed pipeline, or null for a blank line
+     * @throws IllegalArgumentException describing the first syntax error
+     */
+    static Pipeline parse(String line) {
+        return new Parser(line).pipeline();
+    }
+
+    private Pipeline pipeline() {
+        List<SimpleCommand> stages = new ArrayList<>(2);
+        List<String> argv = new ArrayList<>();
+        List<Redirect> redirects = new ArrayList<>(0);
+        boolean background = false;
+
+        while (true) {
+            skipSpaces();
+            if (pos >= line.length()) {
+                break;
+            }
+            char c = line.charAt(pos);
+            if (c == '&') {
+                pos++;
+                skipSpaces();
+                if (pos < line.length()) {
+                    throw new IllegalArgumentException("'&' is only allowed at the end of a line");
+                }
+                if (stages.isEmpty() && argv.isEmpty()) {
+                    throw new IllegalArgumentException("missing command before '&'");
+                }
+                background = true;
+            } else if (c == '|') {
+                pos++;
+                stages.add(command(argv, redirects, "missing command before '|'"));
+                argv = new ArrayList<>();
+                redirects = new ArrayList<>(0);
+            } else if (c == '<') {
+                pos++;
+                redirects.add(new Redirect(0, RedirectType.READ, target("<")));
+            } else if (c == '>') {
+                redirects.add(output(1));
+            } else if (c == '2' && pos + 1 < line.length() && line.charAt(pos + 1) == '>') {
+                pos++;
+                redirects.add(output(2));
+            } else {
+                argv.add(word());
+            }
+        }
+
+        if (stages.isEmpty() && argv.isEmpty() && redirects.isEmpty()) {
+            return null;
+        }
+        stages.add(command(argv, redirects, stages.isEmpty() ? "missing command" : "missing command after '|'"));
+        return new Pipeline(stages, background);
+    }
+
+    private SimpleCommand command(List<String> argv, List<Redirect> redirects, String error) {
+        if (argv.isEmpty()) {
+            throw new IllegalArgumentException(error);
+        }
+        return new SimpleCommand(argv.toArray(new String[0]), redirects);
+    }
+
+    // At '>' of "fd>", "fd>>" or "2>&1"
+    private Redirect output(int fd) {
+        pos++;
+        if (fd == 2 && line.startsWith("&1", pos)) {
+            pos += 2;
+            return new Redirect(2, RedirectType.MERGE_ERRORS, null);
+        }
+        if (pos < line.length() && line.charAt(pos) == '>') {
+            pos++;
+            return new Redirect(fd, RedirectType.APPEND, target(fd == 2 ? "2>>" : ">>"));
+        }
+        return new Redirect(fd, RedirectType.WRITE, target(fd == 2 ? "2>" : ">"));
+    }
+
+    private String target(String operator) {
+        skipSpaces();
+        if (pos >= line.length() || isOperator(line.charAt(pos))) {
+            throw new IllegalArgumentException("missing file name after '" + operator + "'");
+        }
+        return word();
+    }
+
+    private String word() {
+        word.setLength(0);
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (Character.isWhitespace(c) || isOperator(c)) {
+                break;
+            }
+            pos++;
+            if (c == '\'') {
+                int end = line.indexOf('\'', pos);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated single quote");
+                }
+                word.append(line, pos, end);
+                pos = end + 1;
+            } else if (c == '"') {
+                doubleQuoted();
+            } else if (c == '\\') {
+                if (pos >= line.length()) {
+                    throw new IllegalArgumentException("trailing backslash");
+                }
+                word.append(line.charAt(pos++));
+            } else {
+                word.append(c);
+            }
+        }
+        return word.toString();
+    }
+
+    private void doubleQuoted() {
+        while (pos < line.length()) {
+            char c = line.charAt(pos++);
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\' && pos < line.length() && (line.charAt(pos) == '"' || line.charAt(pos) == '\\')) {
+                c = line.charAt(pos++);
+            }
+            word.append(c);
+        }
+        throw new IllegalArgumentException("unterminated double quote");
+    }
+
+    private void skipSpaces() {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isOperator(char c) {
+        return c == '|' || c == '<' || c == '>' || c == '&';
+    }
+}
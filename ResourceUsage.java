@@ -0,0 +1,92 @@
+package org.os;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * What the whole interpreter process has used so far, so that work a command hands to pipeline stages,
+ * fork-join workers or background writers is counted too: CPU time of the process, bytes allocated by
+ * all live threads (a thread that ends during a measurement takes its count with it), bytes passed
+ * through read/write syscalls and bytes fetched from storage, which includes reads of mapped files, from
+ * {@code /proc/self/io} (Linux only). A counter the platform does not provide is -1. {@code time} takes
+ * one sample before and one after a command; anything else running in the process meanwhile, such as
+ * another session or a background job, shows up in the figures as well.
+ */
+record ResourceUsage(long wallNanos, long cpuNanos, long allocatedBytes, long bytesRead, long bytesWritten,
+                     long storageBytesRead) {
+
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Path PROCESS_IO = Paths.get("/proc/self/io");
+
+    /** Samples at the start of a measurement; the I/O counters are read first so their own cost is not counted. */
+    static ResourceUsage start() {
+        long[] io = readIo();
+        long allocated = readAllocatedBytes();
+        long cpu = readCpuNanos();
+        return new ResourceUsage(System.nanoTime(), cpu, allocated, io[0], io[1], io[2]);
+    }
+
+    /** Samples at the end of a measurement, in the reverse order of {@link #start()}. */
+    static ResourceUsage end() {
+        long wall = System.nanoTime();
+        long cpu = readCpuNanos();
+        long allocated = readAllocatedBytes();
+        long[] io = readIo();
+        return new ResourceUsage(wall, cpu, allocated, io[0], io[1], io[2]);
+    }
+
+    /** @return the usage between {@code start} and this sample; unavailable counters stay -1 */
+    ResourceUsage since(ResourceUsage start) {
+        return new ResourceUsage(wallNanos - start.wallNanos, delta(cpuNanos, start.cpuNanos),
+                delta(allocatedBytes, start.allocatedBytes), delta(bytesRead, start.bytesRead),
+                delta(bytesWritten, start.bytesWritten), delta(storageBytesRead, start.storageBytesRead));
+    }
+
+    private static long delta(long end, long start) {
+        // Allocations of threads that ended in between can make the live-thread total shrink
+        return end < 0 || start < 0 ? -1 : Math.max(0, end - start);
+    }
+
+    private static long readCpuNanos() {
+        return OS instanceof com.sun.management.OperatingSystemMXBean hotspot ? hotspot.getProcessCpuTime() : -1;
+    }
+
+    private static long readAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean hotspot && hotspot.isThreadAllocatedMemorySupported()
+                && hotspot.isThreadAllocatedMemoryEnabled()) {
+            long total = 0;
+            for (long allocated : hotspot.getThreadAllocatedBytes(hotspot.getAllThreadIds())) {
+                // -1 for a thread that ended after the ids were taken
+                total += Math.max(0, allocated);
+            }
+            return total;
+        }
+        return -1;
+    }
+
+    // rchar / wchar count every byte through read(2) and write(2), files, pipes and terminals alike;
+    // read_bytes counts what had to come from storage, page faults on mapped files included
+    private static long[] readIo() {
+        long[] io = {-1, -1, -1};
+        try {
+            for (String line : Files.readAllLines(PROCESS_IO)) {
+                if (line.startsWith("rchar: ")) {
+                    io[0] = Long.parseLong(line.substring(7).trim());
+                } else if (line.startsWith("wchar: ")) {
+                    io[1] = Long.parseLong(line.substring(7).trim());
+                } else if (line.startsWith("read_bytes: ")) {
+                    io[2] = Long.parseLong(line.substring(12).trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or /proc is not mounted
+        }
+        return io;
+    }
+}
@@ -0,0 +1,122 @@
+package org.os;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of one interpreter: working directory, terminal streams, environment and background jobs.
+ * Builtins resolve relative paths and write through the session they run in, so any number of sessions
+ * can run on different threads of one JVM without seeing each other's {@code cd} or output.
+ *
+ * <p>The terminal streams are where the session's prompt and results go; a single command may still be
+ * handed other streams for a pipe or redirection.
+ */
+public class Session {
+
+    private static final Session CONSOLE = new ConsoleSession();
+
+    private volatile Path cwd;
+    private final InputStream in;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Map<String, String> environment;
+    private final Jobs jobs = new Jobs();
+    private volatile boolean exitRequested;
+
+    public Session(Path cwd, InputStream in, PrintStream out, PrintStream err) {
+        this(cwd, in, out, err, new ConcurrentHashMap<>(System.getenv()));
+    }
+
+    Session(Path cwd, InputStream in, PrintStream out, PrintStream err, Map<String, String> environment) {
+        this.cwd = cwd == null ? null : cwd.toAbsolutePath().normalize();
+        this.in = in;
+        this.out = out;
+        this.err = err;
+        this.environment = environment;
+    }
+
+    /**
+     * The session of the process console. It uses whatever {@code System.in/out/err} are at the time,
+     * and keeps its directory in {@code user.dir} so code outside the interpreter sees {@code cd}.
+     */
+    public static Session console() {
+        return CONSOLE;
+    }
+
+    public Path cwd() {
+        return cwd;
+    }
+
+    void setCwd(Path directory) {
+        cwd = directory;
+    }
+
+    /** Resolves {@code path} against the working directory; absolute paths are returned as is. */
+    public Path resolve(String path) {
+        return cwd().resolve(path);
+    }
+
+    public InputStream in() {
+        return in;
+    }
+
+    public PrintStream out() {
+        return out;
+    }
+
+    public PrintStream err() {
+        return err;
+    }
+
+    public Map<String, String> environment() {
+        return environment;
+    }
+
+    Jobs jobs() {
+        return jobs;
+    }
+
+    boolean exitRequested() {
+        return exitRequested;
+    }
+
+    void requestExit() {
+        exitRequested = true;
+    }
+
+    private static final class ConsoleSession extends Session {
+
+        ConsoleSession() {
+            super(null, null, null, null, new ConcurrentHashMap<>(System.getenv()));
+        }
+
+        @Override
+        public Path cwd() {
+            return Paths.get(System.getProperty("user.dir"));
+        }
+
+        @Override
+        void setCwd(Path directory) {
+            System.setProperty("user.dir", directory.toString());
+        }
+
+        @Override
+        public InputStream in() {
+            return System.in;
+        }
+
+        @Override
+        public PrintStream out() {
+            return System.out;
+        }
+
+        @Override
+        public PrintStream err() {
+            return System.err;
+        }
+    }
+}
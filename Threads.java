@@ -0,0 +1,43 @@
+package org.os;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts the interpreter's short-lived and per-session threads. On a JDK with virtual threads
+ * (21+) they are virtual, so thousands of idle sessions cost little; on older JDKs they are platform
+ * threads. The JDK is probed reflectively so the code still builds and runs on 17.
+ */
+final class Threads {
+
+    private static final ThreadFactory VIRTUAL = virtualThreadFactory();
+
+    private Threads() {
+    }
+
+    static boolean virtual() {
+        return VIRTUAL != null;
+    }
+
+    static Thread start(String name, Runnable task) {
+        Thread thread = create(name, task);
+        thread.start();
+        return thread;
+    }
+
+    /** A thread that is not started yet, for callers that must publish it before it runs. */
+    static Thread create(String name, Runnable task) {
+        Thread thread = VIRTUAL != null ? VIRTUAL.newThread(task) : new Thread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // No virtual threads, or only as a disabled preview
+            return null;
+        }
+    }
+}
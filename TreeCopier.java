@@ -0,0 +1,205 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies files and directory trees for {@code cp}. The calling thread walks the source with
+ * {@link DirectoryWalker} and creates each directory as soon as it is reached, ahead of the files
+ * inside it; the files themselves are copied by a fixed pool of workers through {@link FileTransfer}
+ * ({@code Files.copy} unless configured otherwise), so a tree of small files is copied many at a time.
+ * At most a few files per worker are queued, so the walk never runs far ahead of the copies.
+ *
+ * <p>Directory permissions and, with {@code -p}, timestamps are applied once all copies are done, as
+ * copying into a directory changes its modification time and a read-only directory could not be filled.
+ * Progress is reported on {@code err} every {@value #PROGRESS_INTERVAL_MILLIS} ms.
+ */
+final class TreeCopier implements AutoCloseable {
+
+    /** What was copied; {@code bytes} are apparent file sizes. */
+    record Summary(long files, long directories, long failed, long bytes, long nanos) {
+
+        /** "F files, D directories, N.N MB copied in T ms (R files/s, N.N MB/s)", and failures if any. */
+        String describe() {
+            return files + " files, " + directories + " directories, " + megabytes(bytes) + " MB copied in "
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms (" + rates(files, bytes, nanos) + ")"
+                    + (failed > 0 ? ", " + failed + " failed" : "");
+        }
+    }
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private static final int QUEUED_PER_WORKER = 4;
+
+    private final boolean preserveTimes;
+    private final PrintStream err;
+    private final ExecutorService workers;
+    private final Semaphore window;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private long directories;
+    // Source and target of every directory created, in creation order, parents first
+    private final List<Path[]> created = new ArrayList<>();
+    // Targets that could not be created, so their contents are skipped without an error each
+    private final Set<Path> missing = new HashSet<>();
+    private final long start = System.nanoTime();
+    private long lastReport = start;
+
+    TreeCopier(int jobs, boolean preserveTimes, PrintStream err) {
+        this.preserveTimes = preserveTimes;
+        this.err = err;
+        this.workers = Executors.newFixedThreadPool(jobs);
+        this.window = new Semaphore(jobs * QUEUED_PER_WORKER);
+    }
+
+    /**
+     * Copies {@code source}, and with a directory everything below it, to {@code target}. Symbolic links,
+     * {@code source} itself included, are copied as links; callers resolve a link they mean to follow. Errors
+     * on single entries are reported on {@code err} and counted; the copy carries on with the rest.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted
+     */
+    void copy(Path source, Path target) throws IOException {
+        DirectoryWalker.walk(source, "cp", err, entry -> {
+            Path to = target.resolve(source.relativize(entry.path()).toString());
+            if (to.getParent() != null && missing.contains(to.getParent())) {
+                missing.add(to);
+                return;
+            }
+            BasicFileAttributes attributes = entry.attributes();
+            if (attributes.isDirectory()) {
+                createDirectory(entry.path(), to);
+            } else if (attributes.isRegularFile()) {
+                submit(entry.path(), to, attributes.size());
+            } else if (attributes.isSymbolicLink()) {
+                copyLink(entry.path(), to);
+            } else {
+                err.println("cp: cannot copy special file '" + entry.path() + "'");
+                failed.increment();
+            }
+            reportProgress();
+        });
+    }
+
+    private void createDirectory(Path source, Path target) {
+        try {
+            Files.createDirectory(target);
+        } catch (FileAlreadyExistsException e) {
+            if (!Files.isDirectory(target)) {
+                fail(source, target, "File exists");
+                missing.add(target);
+                return;
+            }
+        } catch (IOException e) {
+            fail(source, target, DirectoryWalker.describe(e));
+            missing.add(target);
+            return;
+        }
+        created.add(new Path[]{source, target});
+        directories++;
+    }
+
+    private void copyLink(Path source, Path target) {
+        try {
+            Files.deleteIfExists(target);
+            Files.createSymbolicLink(target, Files.readSymbolicLink(source));
+            files.increment();
+        } catch (IOException e) {
+            fail(source, target, DirectoryWalker.describe(e));
+        }
+    }
+
+    private void submit(Path source, Path target, long size) throws InterruptedIOException {
+        try {
+            while (!window.tryAcquire(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                reportProgress();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cp interrupted");
+        }
+        workers.execute(() -> {
+            try {
+                FileTransfer.copy(source, target, preserveTimes);
+                files.increment();
+                bytes.add(size);
+            } catch (IOException e) {
+                fail(source, target, DirectoryWalker.describe(e));
+            } finally {
+                window.release();
+            }
+        });
+    }
+
+    private void fail(Path source, Path target, String reason) {
+        err.println("cp: cannot copy '" + source + "' to '" + target + "': " + reason);
+        failed.increment();
+    }
+
+    /**
+     * Waits for the copies still running, then sets the attributes of the directories created, deepest
+     * first.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted; copies in flight are abandoned
+     */
+    Summary finish() throws InterruptedIOException {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                reportProgress();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("cp interrupted");
+        }
+        for (int i = created.size() - 1; i >= 0; i--) {
+            Path[] directory = created.get(i);
+            try {
+                FileTransfer.copyAttributes(directory[0], directory[1], preserveTimes);
+            } catch (IOException e) {
+                fail(directory[0], directory[1], DirectoryWalker.describe(e));
+            }
+        }
+        return new Summary(files.sum(), directories, failed.sum(), bytes.sum(), System.nanoTime() - start);
+    }
+
+    private void reportProgress() {
+        long now = System.nanoTime();
+        if (now - lastReport < TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS)) {
+            return;
+        }
+        lastReport = now;
+        err.println("cp: " + files.sum() + " files, " + megabytes(bytes.sum()) + " MB copied, "
+                + rates(files.sum(), bytes.sum(), now - start));
+    }
+
+    private static String rates(long files, long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        return String.format(Locale.ROOT, "%.0f files/s, %s MB/s", files / seconds, megabytes((long) (bytes / seconds)));
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    /** Stops the workers; copies still queued after an interrupt are dropped. */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,178 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Removes a directory tree for {@code rm -r} on the fork-join pool. Every directory is a task that lists
+ * it and forks a task per subdirectory and per batch of {@value #BATCH_SIZE} files; the directory itself
+ * is removed by whichever task finishes its last child, so nothing waits in a join and deep trees do not
+ * grow the stack. Symbolic links are removed, never followed.
+ *
+ * <p>The first error other than an entry that is already gone stops the whole removal: tasks still queued
+ * return without touching the disk, so a permission problem near the top is reported at once rather than
+ * after the rest of the tree has been torn down around it.
+ */
+final class TreeDeleter {
+
+    /** What was removed; {@code bytes} are apparent file sizes. */
+    record Result(long files, long directories, long bytes) {
+    }
+
+    private static final int BATCH_SIZE = 256;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile boolean stopped;
+    private FileSystemException failure;
+
+    private TreeDeleter() {
+    }
+
+    /**
+     * Removes {@code root} and everything below it.
+     *
+     * @throws FileSystemException    naming the entry that could not be removed and why
+     * @throws InterruptedIOException if the calling thread is interrupted; what is left stays in place
+     */
+    static Result delete(Path root) throws IOException {
+        TreeDeleter deleter = new TreeDeleter();
+        BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory()) {
+            Files.delete(root);
+            return new Result(1, 0, attributes.size());
+        }
+        try {
+            ForkJoinPool.commonPool().submit(deleter.new DirectoryRemoval(null, root)).get();
+        } catch (InterruptedException e) {
+            deleter.stopped = true;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("rm interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        synchronized (deleter) {
+            if (deleter.failure != null) {
+                throw deleter.failure;
+            }
+        }
+        return new Result(deleter.files.sum(), deleter.directories.sum(), deleter.bytes.sum());
+    }
+
+    private void fail(Path path, Exception e) {
+        if (e instanceof NoSuchFileException) {
+            // Removed by someone else in the meantime, which is what we wanted
+            return;
+        }
+        synchronized (this) {
+            if (failure == null) {
+                failure = new FileSystemException(path.toString(), null, DirectoryWalker.describe(e));
+            }
+        }
+        stopped = true;
+    }
+
+    private record Leaf(Path path, long size) {
+    }
+
+    // Lists a directory, hands its contents to child tasks and removes it once the last of them is done
+    @SuppressWarnings("serial")
+    private final class DirectoryRemoval extends CountedCompleter<Void> {
+        private final Path directory;
+
+        DirectoryRemoval(CountedCompleter<?> parent, Path directory) {
+            super(parent);
+            this.directory = directory;
+        }
+
+        @Override
+        public void compute() {
+            if (!stopped) {
+                List<Leaf> batch = new ArrayList<>(BATCH_SIZE);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path child : stream) {
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        if (attributes.isDirectory()) {
+                            addToPendingCount(1);
+                            new DirectoryRemoval(this, child).fork();
+                        } else {
+                            batch.add(new Leaf(child, attributes.size()));
+                            if (batch.size() == BATCH_SIZE) {
+                                addToPendingCount(1);
+                                new LeafRemoval(this, batch).fork();
+                                batch = new ArrayList<>(BATCH_SIZE);
+                            }
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    fail(directory, e);
+                }
+                if (!batch.isEmpty()) {
+                    addToPendingCount(1);
+                    new LeafRemoval(this, batch).fork();
+                }
+            }
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (stopped) {
+                return;
+            }
+            try {
+                Files.delete(directory);
+                directories.increment();
+            } catch (IOException e) {
+                fail(directory, e);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class LeafRemoval extends CountedCompleter<Void> {
+        private final List<Leaf> leaves;
+
+        LeafRemoval(CountedCompleter<?> parent, List<Leaf> leaves) {
+            super(parent);
+            this.leaves = leaves;
+        }
+
+        @Override
+        public void compute() {
+            for (Leaf leaf : leaves) {
+                if (stopped) {
+                    break;
+                }
+                try {
+                    Files.delete(leaf.path());
+                    files.increment();
+                    bytes.add(leaf.size());
+                } catch (IOException e) {
+                    fail(leaf.path(), e);
+                }
+            }
+            tryComplete();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The counting behind {@code wc}, done on raw bytes without decoding. Files are mapped in chunks of
+ * {@value #CHUNK_SIZE} bytes that are counted in parallel on the fork-join pool; other input is counted
+ * block by block as it arrives. A byte count alone comes from the file size without reading anything.
+ *
+ * <p>Counting only lines reads eight bytes at a time and counts the line breaks among them with word
+ * arithmetic (SWAR), which keeps up with memory bandwidth; words need a look at every byte.
+ */
+final class WordCount {
+
+    static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    static final int MAP_THRESHOLD = 1024 * 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long NEWLINES = '\n' * ONES;
+
+    private WordCount() {
+    }
+
+    /** Counts of one input; {@code words} is -1 when they were not asked for. */
+    record Counts(long lines, long words, long bytes) {
+
+        Counts plus(Counts other) {
+            return new Counts(lines + other.lines, words < 0 ? -1 : words + other.words, bytes + other.bytes);
+        }
+    }
+
+    /** Counts {@code in} as it arrives, a block at a time. */
+    static Counts count(InputStream in, boolean words) throws IOException {
+        Counter counter = new Counter(words);
+        byte[] block = new byte[BLOCK_SIZE];
+        int read;
+        while ((read = in.read(block)) != -1) {
+            counter.add(ByteBuffer.wrap(block, 0, read));
+        }
+        return counter.counts();
+    }
+
+    /**
+     * A task counting {@code file}: large files are split into mapped chunks counted in parallel, small
+     * ones are read whole. With {@code linesOrWords} false only the size is looked at.
+     */
+    static RecursiveTask<Counts> task(Path file, boolean linesOrWords, boolean words) {
+        return new RecursiveTask<>() {
+            @Override
+            protected Counts compute() {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (!linesOrWords && size > 0) {
+                        return new Counts(0, words ? 0 : -1, size);
+                    }
+                    if (size < MAP_THRESHOLD) {
+                        // Also covers files such as those in /proc, which report a size of 0
+                        return count(Channels.newInputStream(channel), words);
+                    }
+                    List<RecursiveTask<Counter>> chunks = new ArrayList<>();
+                    for (long start = 0; start < size; start += CHUNK_SIZE) {
+                        ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                Math.min(CHUNK_SIZE, size - start));
+                        chunks.add(new RecursiveTask<>() {
+                            @Override
+                            protected Counter compute() {
+                                Counter counter = new Counter(words);
+                                counter.add(chunk);
+                                return counter;
+                            }
+                        });
+                    }
+                    Counter total = new Counter(words);
+                    for (RecursiveTask<Counter> chunk : invokeAll(chunks)) {
+                        total.merge(chunk.join());
+                    }
+                    return total.counts();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    // Running counts over consecutive blocks; a word split across two blocks is counted once
+    private static final class Counter {
+        private final boolean words;
+        private long lineCount;
+        private long wordCount;
+        private long byteCount;
+        private boolean startsInWord;
+        private boolean inWord;
+
+        Counter(boolean words) {
+            this.words = words;
+        }
+
+        void add(ByteBuffer data) {
+            int length = data.limit();
+            if (length == 0) {
+                return;
+            }
+            if (byteCount == 0) {
+                startsInWord = !isSpace(data.get(0));
+            }
+            byteCount += length;
+            if (words) {
+                countWords(data, length);
+            } else {
+                lineCount += countNewlines(data, length);
+            }
+        }
+
+        private void countWords(ByteBuffer data, int length) {
+            boolean word = inWord;
+            long lines = 0;
+            long started = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = data.get(i);
+                if (isSpace(b)) {
+                    if (b == '\n') {
+                        lines++;
+                    }
+                    word = false;
+                } else if (!word) {
+                    started++;
+                    word = true;
+                }
+            }
+            lineCount += lines;
+            wordCount += started;
+            inWord = word;
+        }
+
+        // Adds the counts of the chunk that follows this one
+        void merge(Counter next) {
+            if (next.byteCount == 0) {
+                return;
+            }
+            lineCount += next.lineCount;
+            wordCount += next.wordCount - (inWord && next.startsInWord && byteCount > 0 ? 1 : 0);
+            if (byteCount == 0) {
+                startsInWord = next.startsInWord;
+            }
+            byteCount += next.byteCount;
+            inWord = next.inWord;
+        }
+
+        Counts counts() {
+            return new Counts(lineCount, words ? wordCount : -1, byteCount);
+        }
+    }
+
+    // A byte equal to '\n' becomes 0 after the xor; the high bit of each zero byte is then set exactly,
+    // without the borrow between bytes that the shorter (x - ONES) & ~x trick suffers from
+    static long countNewlines(ByteBuffer data, int length) {
+        long count = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long x = data.getLong(i) ^ NEWLINES;
+            long zeroes = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+            count += Long.bitCount(zeroes);
+        }
+        for (; i < length; i++) {
+            if (data.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r');
+    }
+}
@@ -0,0 +1,49 @@
+package org.os;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Fixtures shared by the benchmarks. */
+final class BenchmarkFiles {
+
+    /** Where command output goes when only the time it takes matters. */
+    static final PrintStream SINK = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkFiles() {
+    }
+
+    /** Writes {@code size} bytes of log-like text, so line-based and byte-based commands see real lines. */
+    static Path writeLog(Path file, long size) throws IOException {
+        Random random = new Random(42);
+        StringBuilder line = new StringBuilder();
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            long written = 0;
+            while (written < size) {
+                line.setLength(0);
+                line.append("2024-01-01T00:00:00Z INFO request id=").append(random.nextLong())
+                        .append(" latency=").append(random.nextInt(1000)).append("ms\n");
+                writer.write(line.toString());
+                written += line.length();
+            }
+        }
+        return file;
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
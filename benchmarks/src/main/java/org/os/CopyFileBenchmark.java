@@ -0,0 +1,105 @@
+package org.os;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each {@link FileTransfer} copy strategy on 1 MB to 4 GB of incompressible data, plus
+ * {@code copyFile} itself (what a cross-device {@code mv} runs). Set {@code -Dbench.dir} to a
+ * directory on another file system to include the device crossing. Read the {@code megabytes}
+ * row of the results: it is the copy rate in MB/s, comparable across sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyFileBenchmark {
+
+    @Param({"1", "100", "1024", "4096"})
+    public int sizeMb;
+
+    // Names of FileTransfer.Strategy; JMH's generated code lives outside the package and cannot see the enum
+    @Param({"NATIVE", "TRANSFER", "BUFFERED"})
+    public String strategy;
+
+    private Path dir;
+    private Path source;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void writeSource() throws IOException {
+        dir = Files.createTempDirectory(Paths.get(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir"))),
+                "copy-bench");
+        source = dir.resolve("source.bin");
+        target = dir.resolve("target.bin");
+
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (FileChannel out = FileChannel.open(source, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < sizeMb; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        Files.deleteIfExists(target);
+    }
+
+    /** Megabytes copied; JMH reports it per second next to the operation rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Copied {
+        public long megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Benchmark
+    public void copy(Copied copied) throws IOException {
+        FileTransfer.copy(source, target, FileTransfer.Strategy.valueOf(strategy));
+        copied.megabytes += sizeMb;
+    }
+
+    @Benchmark
+    public void copyFile(Copied copied) throws IOException {
+        CLI.copyFile(source.toFile(), target.toFile());
+        copied.megabytes += sizeMb;
+    }
+}
@@ -0,0 +1,60 @@
+package org.os;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Commands per second for scripted input: parsing alone, and parsing plus dispatch with output discarded. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"pwd", "ls -a", "cat 'small file.txt'", "cat   \"small file.txt\"   ", "nosuchcommand arg"})
+    public String line;
+
+    private Path dir;
+    private Session session;
+
+    @Setup(Level.Trial)
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("dispatch-bench");
+        Files.writeString(dir.resolve("small file.txt"), "hello\n");
+        session = new Session(dir, InputStream.nullInputStream(), BenchmarkFiles.SINK, BenchmarkFiles.SINK);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    // Returned as Object: Parser is package-private and JMH's generated code lives in another package
+    @Benchmark
+    public Object parse() {
+        return Parser.parse(line);
+    }
+
+    @Benchmark
+    public void execute() {
+        CLI.execute(session, line);
+    }
+}
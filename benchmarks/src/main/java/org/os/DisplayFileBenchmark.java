@@ -0,0 +1,81 @@
+package org.os;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code cat} of 1 MB to 1 GB into each kind of output: a redirected file (transferTo), a pipe to
+ * another stage, and a plain stream that forces the copy through the heap. {@link #displayFileByLines()}
+ * is the line-by-line {@code cat} that came before, writing to the same file or stream as the command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DisplayFileBenchmark {
+
+    @Param({"1", "64", "1024"})
+    public int sizeMb;
+
+    @Param({"cat source.log > target.log", "cat source.log | cat > target.log", "cat source.log"})
+    public String command;
+
+    private Path dir;
+    private Session session;
+
+    @Setup(Level.Trial)
+    public void writeSource() throws IOException {
+        dir = Files.createTempDirectory("cat-bench");
+        BenchmarkFiles.writeLog(dir.resolve("source.log"), sizeMb * 1024L * 1024L);
+        session = new Session(dir, InputStream.nullInputStream(), BenchmarkFiles.SINK, BenchmarkFiles.SINK);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void displayFile() {
+        CLI.execute(session, command);
+    }
+
+    // The old displayFile: decode every line and print it again; it had no pipes, so a piped
+    // command is compared against writing the file directly
+    @Benchmark
+    public void displayFileByLines() throws IOException {
+        boolean redirected = command.endsWith("> target.log");
+        try (BufferedReader br = new BufferedReader(new FileReader(dir.resolve("source.log").toFile()));
+             PrintStream out = redirected ? new PrintStream(new FileOutputStream(dir.resolve("target.log").toFile()))
+                     : new PrintStream(OutputStream.nullOutputStream())) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                out.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.os;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** {@code ls} over directories of 10 to a million entries, sorted, unsorted and long. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListDirectoryBenchmark {
+
+    @Param({"10", "10000", "1000000"})
+    public int entries;
+
+    @Param({"", "-U", "-l"})
+    public String flags;
+
+    private Path dir;
+    private Session session;
+    private String[] parts;
+
+    @Setup(Level.Trial)
+    public void createEntries() throws IOException {
+        dir = Files.createTempDirectory("ls-bench");
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(dir.resolve("entry-" + i + ".txt"));
+        }
+        session = new Session(dir, InputStream.nullInputStream(), BenchmarkFiles.SINK, BenchmarkFiles.SINK);
+        parts = flags.isEmpty() ? new String[]{"ls", "."} : new String[]{"ls", flags, "."};
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteEntries() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void listDirectory() {
+        CLI.listDirectory(session, parts, InputStream.nullInputStream(), BenchmarkFiles.SINK, BenchmarkFiles.SINK);
+    }
+}
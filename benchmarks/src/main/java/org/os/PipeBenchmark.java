@@ -0,0 +1,73 @@
+package org.os;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pipe machinery: a file pushed through 2 to 8 builtin stages, and the per-pipeline overhead of
+ * threads and OS pipes when almost nothing flows through them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipeBenchmark {
+
+    @Param({"2", "4", "8"})
+    public int stages;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    private Path dir;
+    private Session session;
+    private String bulk;
+    private String small;
+
+    @Setup(Level.Trial)
+    public void writeSource() throws IOException {
+        dir = Files.createTempDirectory("pipe-bench");
+        BenchmarkFiles.writeLog(dir.resolve("source.log"), sizeMb * 1024L * 1024L);
+        Files.writeString(dir.resolve("small.txt"), "hello\n");
+        session = new Session(dir, InputStream.nullInputStream(), BenchmarkFiles.SINK, BenchmarkFiles.SINK);
+
+        String tail = " | cat".repeat(stages - 1);
+        bulk = "cat source.log" + tail;
+        small = "cat small.txt" + tail;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void bulkPipe() {
+        CLI.execute(session, bulk);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void smallPipe() {
+        CLI.execute(session, small);
+    }
+}
@@ -0,0 +1,61 @@
+package org.os;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of opening, writing and closing a redirection per command, for each operator. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RedirectBenchmark {
+
+    @Param({"pwd > out.txt", "pwd >> out.txt", "cat missing.txt 2> err.txt", "cat missing.txt > out.txt 2>&1",
+            "cat < small.txt > out.txt"})
+    public String command;
+
+    private Path dir;
+    private Session session;
+
+    @Setup(Level.Trial)
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("redirect-bench");
+        Files.writeString(dir.resolve("small.txt"), "hello\n");
+        session = new Session(dir, InputStream.nullInputStream(), BenchmarkFiles.SINK, BenchmarkFiles.SINK);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    // Appends would otherwise grow the file for the whole run
+    @TearDown(Level.Iteration)
+    public void truncate() throws IOException {
+        Files.deleteIfExists(dir.resolve("out.txt"));
+    }
+
+    @Benchmark
+    public void redirect() {
+        CLI.execute(session, command);
+    }
+}